@@ -0,0 +1,8 @@
+-- Adds the columns used to stage a new secure key while Genesys Cloud is updated.
+-- Safe to run more than once.
+IF COL_LENGTH('INT_SECURE_KEY', 'PendingKey') IS NULL
+    ALTER TABLE INT_SECURE_KEY ADD PendingKey NVARCHAR(MAX) NULL;
+GO
+IF COL_LENGTH('INT_SECURE_KEY', 'PendingSince') IS NULL
+    ALTER TABLE INT_SECURE_KEY ADD PendingSince DATETIME NULL;
+GO
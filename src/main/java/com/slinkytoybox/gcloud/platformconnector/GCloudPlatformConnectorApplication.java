@@ -23,6 +23,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.core.io.ClassPathResource;
@@ -31,6 +32,7 @@ import org.springframework.core.io.ClassPathResource;
 @Slf4j
 public class GCloudPlatformConnectorApplication {
 
+    private static final int STARTUP_BUFFER_SIZE = 8192;
     private static String consoleLogo;
     private final Object logoLock = new Object();
 
@@ -38,7 +40,10 @@ public class GCloudPlatformConnectorApplication {
         final String logPrefix = "main() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Booting SpringBoot application", logPrefix);
-        SpringApplication.run(GCloudPlatformConnectorApplication.class, args);
+        SpringApplication application = new SpringApplication(GCloudPlatformConnectorApplication.class);
+        // Keeps per-bean startup steps for /metrics/startup
+        application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_BUFFER_SIZE));
+        application.run(args);
         log.info("{}Running on JVM: {} {} version {}", logPrefix, System.getProperty("java.vm.vendor"), System.getProperty("java.vm.name"), System.getProperty("java.version"));
         log.info(consoleLogo);
         log.trace("{}Leaving method", logPrefix);
@@ -19,7 +19,14 @@
  */
 package com.slinkytoybox.gcloud.platformconnector.businesslogic;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMember;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMember.MemberStatus;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMembership;
+import com.slinkytoybox.gcloud.platformconnector.cluster.LeaderElection;
 import com.slinkytoybox.gcloud.platformconnector.dto.response.monitoring.*;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.ContainerPluginMonitor;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginManagement;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
@@ -30,13 +37,22 @@ import java.io.Serializable;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.Temporal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
 
 /**
  *
@@ -49,6 +65,69 @@ public class MonitoringLogic {
     @Autowired
     private PluginManagement pluginManagement;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private List<ContainerPluginMonitor> pluginMonitors;
+
+    @Autowired
+    private LeaderElection leaderElection;
+
+    @Autowired
+    private ClusterMembership clusterMembership;
+
+    @Value("${monitoring.discovery.cache-max-age:300000}")
+    private Long discoveryCacheMaxAge;
+
+    private final Map<String, SerializedResponse> discoveryCache = new ConcurrentHashMap<>();
+
+    public SerializedResponse getCachedDiscovery(String cacheKey, Supplier<List<? extends DiscoveryResponse>> discoveryBuilder) {
+        final String logPrefix = "getCachedDiscovery() - ";
+        log.trace("{}Entering method", logPrefix);
+        long version = pluginManagement.getDiscoveryVersion();
+        SerializedResponse cached = discoveryCache.get(cacheKey);
+        if (cached != null && cached.getVersion() == version && System.currentTimeMillis() - cached.getCreated() < discoveryCacheMaxAge) {
+            log.debug("{}Returning cached {} discovery at version {}", logPrefix, cacheKey, version);
+            return cached;
+        }
+
+        log.debug("{}Rebuilding {} discovery at version {}", logPrefix, cacheKey, version);
+        byte[] body = serialize(discoveryBuilder.get());
+        String eTag;
+        if (cached != null && Arrays.equals(body, cached.getBody())) {
+            log.trace("{}Discovery content unchanged, keeping ETag {}", logPrefix, cached.getETag());
+            eTag = cached.getETag();
+        }
+        else {
+            if (cached != null && cached.getVersion() == version) {
+                // A plugin changed its components or metrics without pushing its health through the callback
+                version = pluginManagement.bumpDiscoveryVersion("Change detected in " + cacheKey + " discovery on refresh");
+            }
+            eTag = cacheKey + "-" + version;
+        }
+        SerializedResponse response = new SerializedResponse(eTag, version, System.currentTimeMillis(), body);
+        discoveryCache.put(cacheKey, response);
+        log.trace("{}Cached {} discovery with ETag {}", logPrefix, cacheKey, eTag);
+        return response;
+    }
+
+    public SerializedResponse getSerializedHealthReport() {
+        final String logPrefix = "getSerializedHealthReport() - ";
+        log.trace("{}Entering method", logPrefix);
+        byte[] body = serialize(getHealthReport());
+        return new SerializedResponse("report-" + DigestUtils.md5DigestAsHex(body), 0, System.currentTimeMillis(), body);
+    }
+
+    private byte[] serialize(Object response) {
+        try {
+            return objectMapper.writeValueAsBytes(response);
+        }
+        catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Could not serialise monitoring response", ex);
+        }
+    }
+
     public List<DiscoveryResponse> getDiscovery() {
         final String logPrefix = "getPluginDiscovery() - ";
         log.trace("{}Entering method", logPrefix);
@@ -119,13 +198,7 @@ public class MonitoringLogic {
                 if (health.getMetrics() != null) {
                     log.trace("{}Iterating available metrics", logPrefix);
                     for (HealthMetric metric : health.getMetrics()) {
-                        String metricType = "text";
-                        if (metric.getMetricValue() instanceof Integer || metric.getMetricValue() instanceof Long) {
-                            metricType = "int";
-                        }
-                        else if (metric.getMetricValue() instanceof Double || metric.getMetricValue() instanceof Float) {
-                            metricType = "float";
-                        }
+                        String metricType = getMetricType(metric.getMetricValue());
                         log.trace("{}Adding {} metric {} to the dicovery set", logPrefix, metricType, metric.getMetricName());
                         discoveryResponse.add(new MetricDiscoveryResponse()
                                 .setPluginId(plugName)
@@ -138,6 +211,12 @@ public class MonitoringLogic {
                 else {
                     log.trace("{}No metrics available for {}", logPrefix, plugName);
                 }
+                log.trace("{}Adding container metrics", logPrefix);
+                getContainerMetrics(plugin).forEach((metricName, metricValue) -> discoveryResponse.add(new MetricDiscoveryResponse()
+                        .setPluginId(plugName)
+                        .setMetricName(metricName)
+                        .setMetricType(getMetricType(metricValue))
+                ));
             }
         }
         );
@@ -168,6 +247,12 @@ public class MonitoringLogic {
                     overall.setAllPluginsHealthy(false);
                 }
                 phr.setOverallHealth(health.getOverallStatus());
+                HealthStatus containerAssessment = getContainerAssessment(plugin, health.getOverallStatus());
+                if (containerAssessment != null) {
+                    log.debug("{}Container degraded plugin {} to {}", logPrefix, plugName, containerAssessment.getHealthState());
+                    overall.setAllPluginsHealthy(false);
+                    phr.setOverallHealth(containerAssessment);
+                }
 
                 Map<String, Map<String, Serializable>> healthMap = new HashMap<>();
 
@@ -192,6 +277,14 @@ public class MonitoringLogic {
                         }
                     }
                 }
+                getContainerMetrics(plugin).forEach((metricName, metricValue) -> {
+                    if (getMetricType(metricValue).equals("int")) {
+                        integerMap.put(metricName, metricValue.longValue());
+                    }
+                    else {
+                        floatMap.put(metricName, metricValue.doubleValue());
+                    }
+                });
                 healthMap.put("float", floatMap);
                 healthMap.put("text", stringMap);
                 healthMap.put("int", integerMap);
@@ -241,11 +334,64 @@ public class MonitoringLogic {
         }
         response.setLoadedPlugins(loadedPlugins);
         response.setPluginHealth(pluginHealth);
+        response.setClusterState(getClusterState());
         response.setApplicationState(new HealthStatus().setHealthComment(message).setHealthState(overallState));
         log.trace("{}Returning health response: {}", logPrefix, response);
         return response;
     }
 
+    private Map<String, String> getClusterState() {
+        Map<String, String> clusterState = new LinkedHashMap<>(leaderElection.getClusterState());
+        List<ClusterMember> members = clusterMembership.getMembers();
+        clusterState.put("gossipHealthy", String.valueOf(clusterMembership.isGossipHealthy()));
+        clusterState.put("knownMembers", String.valueOf(members.size()));
+        clusterState.put("aliveMembers", String.valueOf(members.stream().filter(m -> m.getStatus() == MemberStatus.ALIVE).count()));
+        return clusterState;
+    }
+
+    private Map<String, Number> getContainerMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> containerMetrics = new TreeMap<>();
+        pluginMonitors.forEach(monitor -> containerMetrics.putAll(monitor.getPluginMetrics(plugin)));
+        return containerMetrics;
+    }
+
+    private HealthStatus getContainerAssessment(RegisteredPlugin plugin, HealthStatus pluginStatus) {
+        HealthStatus worst = null;
+        for (ContainerPluginMonitor monitor : pluginMonitors) {
+            HealthStatus assessment = monitor.getHealthAssessment(plugin);
+            if (assessment != null && getSeverity(assessment.getHealthState()) > getSeverity(worst == null ? pluginStatus.getHealthState() : worst.getHealthState())) {
+                worst = assessment;
+            }
+        }
+        if (worst == null) {
+            return null;
+        }
+        String comment = (pluginStatus.getHealthComment() == null || pluginStatus.getHealthComment().isBlank() ? "" : pluginStatus.getHealthComment() + " | ");
+        return new HealthStatus().setHealthState(worst.getHealthState()).setHealthComment(comment + worst.getHealthComment());
+    }
+
+    private int getSeverity(HealthState state) {
+        if (state == null) {
+            return 1;
+        }
+        return switch (state) {
+            case HEALTHY -> 0;
+            case WARNING -> 2;
+            case FAILED -> 3;
+            default -> 1;
+        };
+    }
+
+    private String getMetricType(Object metricValue) {
+        if (metricValue instanceof Integer || metricValue instanceof Long) {
+            return "int";
+        }
+        else if (metricValue instanceof Double || metricValue instanceof Float) {
+            return "float";
+        }
+        return "text";
+    }
+
     @Data
     private class OverallStatus {
 
@@ -254,4 +400,14 @@ public class MonitoringLogic {
         private boolean anyPluginStarted = false;
     }
 
+    @Getter
+    @AllArgsConstructor
+    public static class SerializedResponse {
+
+        private final String eTag;
+        private final long version;
+        private final long created;
+        private final byte[] body;
+    }
+
 }
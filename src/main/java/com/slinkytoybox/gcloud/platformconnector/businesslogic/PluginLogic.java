@@ -22,9 +22,18 @@ package com.slinkytoybox.gcloud.platformconnector.businesslogic;
 import com.slinkytoybox.gcloud.platformconnector.connection.GCloudAPIConnection;
 import com.slinkytoybox.gcloud.platformconnector.dto.request.*;
 import com.slinkytoybox.gcloud.platformconnector.dto.response.*;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker.InFlightCall;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginLatencyMonitor;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginResourceMonitor;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginSloMonitor;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginWatchdog;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.jfr.AuthenticationEvent;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.jfr.PluginInvocationEvent;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginManagement;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
 import com.slinkytoybox.gcloud.platformconnector.security.CloudSecurityConfiguration;
+import com.slinkytoybox.gcloud.platformconnector.security.CloudSecurityConfiguration.KeyMatch;
 import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
 import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
 import com.slinkytoybox.gcloud.platformconnectorplugin.SourceContainer;
@@ -59,10 +68,25 @@ public class PluginLogic {
     @Autowired
     private CloudSecurityConfiguration securityConfig;
 
+    @Autowired
+    private PluginLatencyMonitor latencyMonitor;
+
+    @Autowired
+    private PluginSloMonitor sloMonitor;
+
+    @Autowired
+    private PluginResourceMonitor resourceMonitor;
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Autowired
+    private PluginWatchdog watchdog;
+
     public ResponseEntity<JSONResponse> doCreate(WebRequest webReq, String pluginId, JSONCreateRequest request) {
         String logPrefix = "doCreate() - ";
         log.trace("{}Entering method", logPrefix);
-        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid(), securityConfig.getCurrentPassword());
+        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid());
         if (hdr.checkMissingHeaders()) {
             log.error("{}Authentication headers missing from request", logPrefix);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new JSONErrorResponse().setErrorMessage("Invalid request, required headers missing").setErrorCode(400));
@@ -87,7 +111,7 @@ public class PluginLogic {
             pluginRequest.setRequestDate(OffsetDateTime.now(ZoneId.of("Australia/Sydney")));
             pluginRequest.setObjectDetails(request.getNewDetails());
             pluginRequest.setRequestParameters(request.getQueryString());
-            CreateResponse pluginResponse = (CreateResponse) plug.plugin.getResponseFromRequest(pluginRequest);
+            CreateResponse pluginResponse = invokePlugin(pluginId, requestId, PluginOperation.CREATE, plug.plugin, p -> (CreateResponse) p.getResponseFromRequest(pluginRequest));
             setErrorDetails(jsonResponse, pluginResponse);
         }
         catch (Exception ex) {
@@ -102,7 +126,7 @@ public class PluginLogic {
     public ResponseEntity<JSONResponse> doUpdate(WebRequest webReq, String pluginId, JSONUpdateRequest request, String recordId) {
         String logPrefix = "doUpdate() - ";
         log.trace("{}Entering method", logPrefix);
-        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid(), securityConfig.getCurrentPassword());
+        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid());
         if (hdr.checkMissingHeaders()) {
             log.error("{}Authentication headers missing from request", logPrefix);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new JSONErrorResponse().setErrorMessage("Invalid request, required headers missing").setErrorCode(400));
@@ -129,7 +153,7 @@ public class PluginLogic {
             pluginRequest.setRequestDate(OffsetDateTime.now(ZoneId.of("Australia/Sydney")));
             pluginRequest.setNewDetails(request.getNewDetails());
             pluginRequest.setRequestParameters(request.getQueryString());
-            UpdateResponse pluginResponse = (UpdateResponse) plug.plugin.getResponseFromRequest(pluginRequest);
+            UpdateResponse pluginResponse = invokePlugin(pluginId, requestId, PluginOperation.UPDATE, plug.plugin, p -> (UpdateResponse) p.getResponseFromRequest(pluginRequest));
             setErrorDetails(jsonResponse, pluginResponse);
         }
         catch (Exception ex) {
@@ -143,7 +167,7 @@ public class PluginLogic {
     public ResponseEntity<JSONResponse> doSearch(WebRequest webReq, String pluginId, JSONReadRequest request, String recordId) {
         String logPrefix = "doSearch() - ";
         log.trace("{}Entering method", logPrefix);
-        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid(), securityConfig.getCurrentPassword());
+        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid());
         if (hdr.checkMissingHeaders()) {
             log.error("{}Authentication headers missing from request", logPrefix);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new JSONErrorResponse().setErrorMessage("Invalid request, required headers missing").setErrorCode(400));
@@ -177,7 +201,7 @@ public class PluginLogic {
             else {
                 pluginRequest.setSearchParameters(request.getSearchParameters());
             }
-            ReadResponse pluginResponse = (ReadResponse) plug.plugin.getResponseFromRequest(pluginRequest);
+            ReadResponse pluginResponse = invokePlugin(pluginId, requestId, PluginOperation.READ, plug.plugin, p -> (ReadResponse) p.getResponseFromRequest(pluginRequest));
             setErrorDetails(jsonResponse, pluginResponse);
         }
         catch (Exception ex) {
@@ -190,7 +214,7 @@ public class PluginLogic {
     public ResponseEntity<JSONResponse> doDelete(WebRequest webReq, String pluginId, String recordId, JSONDeleteRequest request) {
         String logPrefix = "doDelete() - ";
         log.trace("{}Entering method", logPrefix);
-        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid(), securityConfig.getCurrentPassword());
+        SecurityHeader hdr = new SecurityHeader(webReq, apiConnection.getPlatformGuid());
         if (hdr.checkMissingHeaders()) {
             log.error("{}Authentication headers missing from request", logPrefix);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new JSONErrorResponse().setErrorMessage("Invalid request, required headers missing").setErrorCode(400));
@@ -216,7 +240,7 @@ public class PluginLogic {
             pluginRequest.setRequestDate(OffsetDateTime.now(ZoneId.of("Australia/Sydney")));
             pluginRequest.setObjectId(recordId);
             pluginRequest.setRequestParameters(request.getQueryString());
-            DeleteResponse pluginResponse = (DeleteResponse) plug.plugin.getResponseFromRequest(pluginRequest);
+            DeleteResponse pluginResponse = invokePlugin(pluginId, requestId, PluginOperation.DELETE, plug.plugin, p -> (DeleteResponse) p.getResponseFromRequest(pluginRequest));
             setErrorDetails(jsonResponse, pluginResponse);
         }
         catch (Exception ex) {
@@ -227,6 +251,60 @@ public class PluginLogic {
         return ResponseEntity.ok().body(jsonResponse);
     }
 
+    private <T extends PluginResponse> T invokePlugin(String pluginId, String requestId, PluginOperation operation, PlatformConnectorPlugin plugin, PluginCall<T> call) throws Exception {
+        final String logPrefix = "invokePlugin() - [" + requestId + "] - ";
+        log.trace("{}Entering method", logPrefix);
+        PluginInvocationEvent event = new PluginInvocationEvent();
+        event.begin();
+        PluginResourceMonitor.Sample resourceSample = resourceMonitor.startSample();
+        InFlightCall inFlight = invocationTracker.begin(pluginId, operation, requestId, plugin);
+        // An upgrade may have switched versions since the lookup. Checking again after registering means its drain
+        // either counts this call or this call moves to the new version
+        RegisteredPlugin current;
+        while ((current = pluginManagement.getPluginByName(pluginId)) != null && current.getPlugin() != null
+                && current.getPlugin().getClass().getClassLoader() != plugin.getClass().getClassLoader()) {
+            log.debug("{}Plugin {} was switched to another version, moving the call to it", logPrefix, pluginId);
+            invocationTracker.end(inFlight);
+            plugin = current.getPlugin();
+            inFlight = invocationTracker.begin(pluginId, operation, requestId, plugin);
+        }
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        String status = "EXCEPTION";
+        try {
+            T pluginResponse = call.invoke(plugin);
+            failed = isFailedResponse(pluginResponse);
+            status = (pluginResponse == null || pluginResponse.getStatus() == null ? "NO_RESPONSE" : pluginResponse.getStatus().name());
+            return pluginResponse;
+        }
+        finally {
+            long duration = System.nanoTime() - startTime;
+            invocationTracker.end(inFlight);
+            resourceMonitor.recordInvocation(pluginId, operation, resourceSample);
+            event.end();
+            if (event.shouldCommit()) {
+                event.pluginId = pluginId;
+                event.operation = operation.name();
+                event.requestId = requestId;
+                event.status = status;
+                event.commit();
+            }
+            latencyMonitor.recordInvocation(pluginId, operation, duration, failed);
+            sloMonitor.recordInvocation(pluginId, operation, duration, failed);
+            log.debug("{}{} {} took {}us, failed={}", logPrefix, pluginId, operation, duration / 1000, failed);
+        }
+    }
+
+    private boolean isFailedResponse(PluginResponse pluginResponse) {
+        if (pluginResponse == null || pluginResponse.getStatus() == null) {
+            return true;
+        }
+        return switch (pluginResponse.getStatus()) {
+            case SUCCESS, RECORD_NOT_FOUND, MULTIPLE_RECORDS -> false;
+            default -> true;
+        };
+    }
+
     private void setErrorDetails(JSONResponse jsonResponse, PluginResponse pluginResponse) {
         String logPrefix = "setErrorDetails() - ";
         log.trace("{}Entering method", logPrefix);
@@ -305,6 +383,14 @@ public class PluginLogic {
             log.error("{}Plugin {} is not started", logPrefix, pluginId);
             return new PlatformPlugin(null, false, "Plugin " + pluginId + " is not running");
         }
+        else if (watchdog.isFailed(pluginId)) {
+            log.error("{}Plugin {} has stuck calls and is marked failed", logPrefix, pluginId);
+            return new PlatformPlugin(null, false, "Plugin " + pluginId + " is failed - calls to it are stuck");
+        }
+        else if (!invocationTracker.isAdmitting(pluginId)) {
+            log.error("{}Plugin {} is stopping", logPrefix, pluginId);
+            return new PlatformPlugin(null, false, "Plugin " + pluginId + " is stopping");
+        }
         else if (rp.getHealth().getOverallStatus().getHealthState() == HealthState.FAILED) {
             log.error("{}Plugin {} is failed - {}", logPrefix, pluginId, rp.getHealth().getOverallStatus().getHealthComment());
             return new PlatformPlugin(null, false, "Plugin " + pluginId + " is failed - " + rp.getHealth().getOverallStatus().getHealthComment());
@@ -337,6 +423,12 @@ public class PluginLogic {
         return null;
     }
 
+    @FunctionalInterface
+    private interface PluginCall<T extends PluginResponse> {
+
+        T invoke(PlatformConnectorPlugin plugin) throws Exception;
+    }
+
     @AllArgsConstructor
     private class PlatformPlugin {
 
@@ -359,9 +451,8 @@ public class PluginLogic {
         private final String authHeader;
 
         private final String organisationId;
-        private final String currentPassword;
 
-        private SecurityHeader(WebRequest webReq, String organisationId, String currentPassword) {
+        private SecurityHeader(WebRequest webReq, String organisationId) {
             final String logPrefix = "ctor() - ";
 
             log.debug("{}Reading GCloud Headers", logPrefix);
@@ -370,25 +461,46 @@ public class PluginLogic {
             reqHeader = (webReq.getHeader(REQ_HDR) == null ? "" : webReq.getHeader(REQ_HDR));
             authHeader = (webReq.getHeader(AUTH_HDR) == null ? "" : webReq.getHeader(AUTH_HDR));
             this.organisationId = organisationId;
-            this.currentPassword = currentPassword;
         }
 
         public boolean checkMissingHeaders() {
             final String logPrefix = "checkMissingHeaders() - ";
             log.trace("{}Checking authentication headers exist", logPrefix);
-            return (orgHeader.isBlank() || corHeader.isBlank() || reqHeader.isBlank() || authHeader.isBlank());
+            boolean missing = (orgHeader.isBlank() || corHeader.isBlank() || reqHeader.isBlank() || authHeader.isBlank());
+            if (missing) {
+                recordAuthentication(false, false, "MISSING_HEADERS");
+            }
+            return missing;
         }
 
         public boolean isAuthenticationValid() {
             final String logPrefix = "isAuthenticationValid() - ";
             log.trace("{}Checking authentication headers match required values", logPrefix);
-            if (!orgHeader.equals(organisationId)) {
+            boolean orgMatched = orgHeader.equals(organisationId);
+            KeyMatch keyMatch = securityConfig.matchAuthKey(authHeader);
+            if (!orgMatched) {
                 log.trace("{}>> OrganisationId is invalid", logPrefix);
             }
-            if (!authHeader.equals(currentPassword)) {
-                log.trace("{}>> Auth header does not match passwordF", logPrefix);
+            if (keyMatch == KeyMatch.NONE) {
+                log.trace("{}>> Auth header does not match current or previous password", logPrefix);
+            }
+            else if (keyMatch == KeyMatch.PREVIOUS) {
+                log.debug("{}>> Auth header matches the previous password, still within rotation grace period", logPrefix);
+            }
+            boolean valid = (orgMatched && keyMatch != KeyMatch.NONE);
+            recordAuthentication(orgMatched, keyMatch != KeyMatch.NONE, (valid ? (keyMatch == KeyMatch.PREVIOUS ? "ALLOWED_PREVIOUS_KEY" : "ALLOWED") : "DENIED"));
+            return valid;
+        }
+
+        private void recordAuthentication(boolean organisationMatched, boolean authKeyMatched, String result) {
+            AuthenticationEvent event = new AuthenticationEvent();
+            if (event.shouldCommit()) {
+                event.requestId = reqHeader;
+                event.organisationMatched = organisationMatched;
+                event.authKeyMatched = authKeyMatched;
+                event.result = result;
+                event.commit();
             }
-            return (orgHeader.equals(organisationId) && authHeader.equals(currentPassword));
         }
     }
 }
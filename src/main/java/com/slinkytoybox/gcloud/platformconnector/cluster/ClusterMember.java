@@ -0,0 +1,73 @@
+/*
+ *   platformconnector - ClusterMember.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.cluster;
+
+import java.io.Serializable;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Data
+@Accessors(chain = true)
+public class ClusterMember implements Serializable {
+
+    private String serverName;
+    private String serverUrl;
+    // Start time of the member's JVM, so a restarted member outranks everything heard from its previous run
+    private long incarnation;
+    private long heartbeat;
+    private String keyVersion;
+    private int inFlightCalls;
+    private double systemLoad;
+    private MemberStatus status = MemberStatus.UNKNOWN;
+
+    public ClusterMember copy() {
+        return new ClusterMember()
+                .setServerName(serverName)
+                .setServerUrl(serverUrl)
+                .setIncarnation(incarnation)
+                .setHeartbeat(heartbeat)
+                .setKeyVersion(keyVersion)
+                .setInFlightCalls(inFlightCalls)
+                .setSystemLoad(systemLoad)
+                .setStatus(status);
+    }
+
+    /**
+     * True if this view of the member is more recent than the other one: a later incarnation, or the same incarnation
+     * with a higher heartbeat.
+     */
+    public boolean isNewerThan(ClusterMember other) {
+        if (incarnation != other.incarnation) {
+            return incarnation > other.incarnation;
+        }
+        return heartbeat > other.heartbeat;
+    }
+
+    public enum MemberStatus {
+        UNKNOWN,
+        ALIVE,
+        SUSPECT,
+        DEAD
+    }
+}
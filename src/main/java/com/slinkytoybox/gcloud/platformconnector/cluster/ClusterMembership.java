@@ -0,0 +1,346 @@
+/*
+ *   platformconnector - ClusterMembership.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMember.MemberStatus;
+import com.slinkytoybox.gcloud.platformconnector.connection.ClusterPeerClient;
+import com.slinkytoybox.gcloud.platformconnector.connection.ClusterPeerClient.PeerResult;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker;
+import com.slinkytoybox.gcloud.platformconnector.security.CloudSecurityConfiguration;
+import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import jakarta.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Push-pull gossip between connector nodes. Each round this node bumps its own heartbeat and exchanges its view of the
+ * cluster with a few random live peers, so membership, liveness, load and secure key versions spread through the
+ * cluster in O(log N) rounds. INT_SERVER (and cluster.gossip.seeds) are used to find the first peers, and are the only
+ * URLs this node will contact. Gossip is signed with a key derived from secure.key and unsigned gossip is ignored.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class ClusterMembership {
+
+    private static final String GOSSIP_PATH = "cluster/gossip";
+
+    @Autowired
+    private ClusterPeerClient peerClient;
+
+    @Autowired
+    private CloudSecurityConfiguration securityConfig;
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PlatformEncryption encryptor;
+
+    @Value("${server.id:DefaultServerId}")
+    private String serverId;
+
+    @Value("${cluster.gossip.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${cluster.gossip.self-url:}")
+    private String selfUrl;
+
+    @Value("${cluster.gossip.seeds:}")
+    private List<String> seedUrls;
+
+    @Value("${cluster.gossip.interval:1000}")
+    private Long gossipInterval;
+
+    @Value("${cluster.gossip.fanout:2}")
+    private Integer fanout;
+
+    @Value("${cluster.gossip.suspect-timeout:5000}")
+    private Long suspectTimeout;
+
+    @Value("${cluster.gossip.dead-timeout:30000}")
+    private Long deadTimeout;
+
+    @Value("${cluster.gossip.seed-refresh:600000}")
+    private Long seedRefresh;
+
+    private final Map<String, ClusterMember> members = new ConcurrentHashMap<>();
+    // Gossip can only name URLs this node already trusts: INT_SERVER rows and the configured seeds
+    private volatile Map<String, String> knownServers = Map.of();
+    private volatile LocalDateTime lastReloadedKeyVersion = null;
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final AtomicLong heartbeat = new AtomicLong(0);
+    private final long incarnation = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private volatile long lastExchange = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    private long lastSeedLoad = 0;
+
+    @PostConstruct
+    public void startMembership() {
+        final String logPrefix = "startMembership() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!enabled) {
+            log.info("{}Cluster gossip is disabled", logPrefix);
+            return;
+        }
+        loadSeeds();
+        log.info("{}Cluster gossip started as {} at {}, {} known members", logPrefix, serverId, selfUrl, members.size());
+    }
+
+    private void loadSeeds() {
+        final String logPrefix = "loadSeeds() - ";
+        log.trace("{}Entering Method", logPrefix);
+        lastSeedLoad = System.nanoTime();
+        try {
+            Map<String, String> servers = peerClient.getAllServers();
+            knownServers = Map.copyOf(servers);
+            if (selfUrl == null || selfUrl.isBlank()) {
+                selfUrl = servers.get(serverId);
+            }
+            servers.forEach((serverName, serverUrl) -> {
+                if (!serverName.equals(serverId)) {
+                    members.putIfAbsent(serverName, new ClusterMember().setServerName(serverName).setServerUrl(serverUrl));
+                }
+            });
+        }
+        catch (Exception ex) {
+            log.warn("{}Could not read seed servers from the database, relying on gossip and configured seeds", logPrefix, ex);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.gossip.interval:1000}", initialDelayString = "${cluster.gossip.interval:1000}")
+    public void gossipRound() {
+        final String logPrefix = "gossipRound() - ";
+        if (!enabled) {
+            return;
+        }
+        log.trace("{}Entering Method", logPrefix);
+        if (System.nanoTime() - lastSeedLoad > TimeUnit.MILLISECONDS.toNanos(seedRefresh)) {
+            loadSeeds();
+        }
+        heartbeat.incrementAndGet();
+        updateStatuses();
+
+        String message;
+        try {
+            message = objectMapper.writeValueAsString(buildMessage());
+        }
+        catch (JsonProcessingException ex) {
+            log.error("{}Could not serialise gossip message", logPrefix, ex);
+            return;
+        }
+
+        Map<String, String> targets = selectTargets();
+        List<CompletableFuture<PeerResult>> pending = new ArrayList<>();
+        targets.forEach((serverName, serverUrl) -> {
+            try {
+                // Runs on the shared scheduler, so a slow peer must not hold up lease renewal or the watchdog
+                pending.add(peerClient.postJsonAsync(serverName, serverUrl, GOSSIP_PATH, message).completeOnTimeout(null, gossipInterval, TimeUnit.MILLISECONDS));
+            }
+            catch (IllegalArgumentException ex) {
+                log.debug("{}Skipping {}: {}", logPrefix, serverName, ex.getMessage());
+            }
+        });
+
+        for (CompletableFuture<PeerResult> future : pending) {
+            PeerResult result = future.join();
+            if (result == null) {
+                log.debug("{}Gossip to a peer took longer than {}ms, not waiting for it", logPrefix, gossipInterval);
+                continue;
+            }
+            if (!result.isSuccess()) {
+                log.debug("{}Gossip to {} failed: {}", logPrefix, result.getServerName(), result.getErrorMessage());
+                continue;
+            }
+            if (!encryptor.verify(result.getResponse(), result.getSignature())) {
+                log.warn("{}Gossip response from {} is not signed with this cluster's key, ignoring it", logPrefix, result.getServerName());
+                continue;
+            }
+            try {
+                merge(objectMapper.readValue(result.getResponse(), GossipMessage.class));
+            }
+            catch (JsonProcessingException ex) {
+                log.warn("{}Invalid gossip response from {}", logPrefix, result.getServerName(), ex);
+            }
+        }
+        checkKeyVersion();
+        log.trace("{}Gossiped with {} of {} members", logPrefix, pending.size(), members.size());
+    }
+
+    /**
+     * Handles gossip pushed by a peer. The body must be signed with the cluster key derived from secure.key.
+     *
+     * @param body the JSON gossip message as received
+     * @param signature the signature header sent with it
+     * @return this node's view as JSON, for the caller to sign and return
+     */
+    public String receiveGossip(String body, String signature) throws JsonProcessingException {
+        final String logPrefix = "receiveGossip() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!encryptor.verify(body, signature)) {
+            log.warn("{}Rejecting gossip that is not signed with this cluster's key", logPrefix);
+            throw new SecurityException("Gossip signature is missing or invalid");
+        }
+        GossipMessage message = objectMapper.readValue(body, GossipMessage.class);
+        log.debug("{}Received gossip from {} with {} members", logPrefix, message.getSender(), (message.getMembers() == null ? 0 : message.getMembers().size()));
+        merge(message);
+        return objectMapper.writeValueAsString(buildMessage());
+    }
+
+    private void merge(GossipMessage message) {
+        final String logPrefix = "merge() - ";
+        if (message.getMembers() == null) {
+            return;
+        }
+        for (ClusterMember remote : message.getMembers()) {
+            if (remote.getServerName() == null || remote.getServerName().equals(serverId)) {
+                continue;
+            }
+            // Heartbeats only increase within one run of a member, and a restart starts a later incarnation
+            members.compute(remote.getServerName(), (serverName, local) -> {
+                if (local == null || remote.isNewerThan(local)) {
+                    if (local == null || local.getStatus() != MemberStatus.ALIVE) {
+                        log.info("{}Member {} at {} is alive", logPrefix, serverName, remote.getServerUrl());
+                    }
+                    lastSeen.put(serverName, System.nanoTime());
+                    return remote.copy().setServerUrl(trustedUrl(serverName, remote.getServerUrl())).setStatus(MemberStatus.ALIVE);
+                }
+                return local;
+            });
+        }
+        lastExchange = System.nanoTime();
+        securityConfig.recordClusterSync();
+    }
+
+    private String trustedUrl(String serverName, String claimedUrl) {
+        final String logPrefix = "trustedUrl() - ";
+        // INT_SERVER wins for a member it knows. Otherwise only a configured seed URL is accepted
+        for (Map.Entry<String, String> server : knownServers.entrySet()) {
+            if (server.getKey().equalsIgnoreCase(serverName)) {
+                return server.getValue();
+            }
+        }
+        if (claimedUrl != null && seedUrls != null && seedUrls.contains(claimedUrl)) {
+            return claimedUrl;
+        }
+        if (claimedUrl != null) {
+            log.debug("{}Ignoring URL {} for {}, it is not in INT_SERVER or the seed list", logPrefix, claimedUrl, serverName);
+        }
+        return null;
+    }
+
+    private GossipMessage buildMessage() {
+        ClusterMember self = new ClusterMember()
+                .setServerName(serverId)
+                .setServerUrl(selfUrl)
+                .setIncarnation(incarnation)
+                .setHeartbeat(heartbeat.get())
+                .setKeyVersion(securityConfig.getKeyVersion() == null ? null : securityConfig.getKeyVersion().toString())
+                .setInFlightCalls(invocationTracker.getInFlightCalls().size())
+                .setSystemLoad(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage())
+                .setStatus(MemberStatus.ALIVE);
+        List<ClusterMember> view = new ArrayList<>();
+        view.add(self);
+        members.values().forEach(m -> view.add(m.copy()));
+        return new GossipMessage().setSender(serverId).setMembers(view);
+    }
+
+    private void updateStatuses() {
+        final String logPrefix = "updateStatuses() - ";
+        long now = System.nanoTime();
+        members.values().forEach(m -> {
+            Long seen = lastSeen.get(m.getServerName());
+            if (seen == null) {
+                return;
+            }
+            long age = TimeUnit.NANOSECONDS.toMillis(now - seen);
+            MemberStatus status = (age < suspectTimeout ? MemberStatus.ALIVE : (age < deadTimeout ? MemberStatus.SUSPECT : MemberStatus.DEAD));
+            if (status != m.getStatus()) {
+                log.info("{}Member {} is now {}, last heard from {}ms ago", logPrefix, m.getServerName(), status, age);
+                m.setStatus(status);
+            }
+        });
+    }
+
+    private Map<String, String> selectTargets() {
+        List<ClusterMember> candidates = new ArrayList<>();
+        List<ClusterMember> dead = new ArrayList<>();
+        members.values().forEach(m -> (m.getStatus() == MemberStatus.DEAD ? dead : candidates).add(m));
+        Collections.shuffle(candidates);
+        Map<String, String> targets = new LinkedHashMap<>();
+        candidates.stream().limit(fanout).forEach(m -> targets.put(m.getServerName(), m.getServerUrl()));
+        // Occasionally retry a dead member, so a healed partition or restarted node rejoins
+        if (!dead.isEmpty() && Math.random() < 1.0 / (candidates.size() + 1)) {
+            ClusterMember m = dead.get((int) (Math.random() * dead.size()));
+            targets.put(m.getServerName(), m.getServerUrl());
+        }
+        if (candidates.isEmpty() && seedUrls != null) {
+            seedUrls.stream().filter(url -> !url.isBlank() && !url.equals(selfUrl)).forEach(url -> targets.put(url, url));
+        }
+        return targets;
+    }
+
+    private void checkKeyVersion() {
+        final String logPrefix = "checkKeyVersion() - ";
+        LocalDateTime ownVersion = securityConfig.getKeyVersion();
+        LocalDateTime newest = members.values().stream()
+                .filter(m -> m.getStatus() == MemberStatus.ALIVE && m.getKeyVersion() != null)
+                .map(m -> LocalDateTime.parse(m.getKeyVersion()))
+                .max(Comparator.naturalOrder())
+                .orElse(null);
+        // Each version a peer reports triggers at most one reload, so a peer stuck ahead cannot make us hammer the database
+        if (newest != null && (ownVersion == null || newest.isAfter(ownVersion)) && !newest.equals(lastReloadedKeyVersion)) {
+            log.info("{}Peer has key version {}, newer than ours ({}). Reloading key", logPrefix, newest, ownVersion);
+            lastReloadedKeyVersion = newest;
+            securityConfig.checkPasswordChanged();
+        }
+    }
+
+    public boolean isGossipHealthy() {
+        return enabled && System.nanoTime() - lastExchange < TimeUnit.MILLISECONDS.toNanos(suspectTimeout);
+    }
+
+    public List<ClusterMember> getMembers() {
+        updateStatuses();
+        List<ClusterMember> view = new ArrayList<>(buildMessage().getMembers());
+        view.sort(Comparator.comparing(ClusterMember::getServerName));
+        return view;
+    }
+}
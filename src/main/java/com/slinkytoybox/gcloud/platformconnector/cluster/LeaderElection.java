@@ -0,0 +1,238 @@
+/*
+ *   platformconnector - LeaderElection.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.cluster;
+
+import com.slinkytoybox.gcloud.platformconnector.connection.CloudDatabaseConnection;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Database lease used to run cluster-singleton jobs, such as password rotation, on exactly one node. Each change of
+ * holder increments the fencing token, so work started under an old lease can be rejected by the database. The local
+ * view of leadership expires a safety margin before the lease itself, so a node that loses the database steps down
+ * before anyone else can take over.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class LeaderElection {
+
+    public static final String LEASE_NAME = "scheduler";
+
+    @Autowired
+    private CloudDatabaseConnection cdc;
+
+    @Value("${server.id:DefaultServerId}")
+    private String serverId;
+
+    @Value("${cluster.leader.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${cluster.leader.lease-duration:15000}")
+    private Long leaseDuration;
+
+    @Value("${cluster.leader.safety-margin:3000}")
+    private Long safetyMargin;
+
+    private volatile long fencingToken = -1;
+    private volatile long leaderUntilNanos = 0;
+    private volatile String leaderName = null;
+    private volatile boolean leader = false;
+    private volatile boolean leaseTableChecked = false;
+
+    @Scheduled(fixedDelayString = "${cluster.leader.renew-interval:5000}")
+    public void renewLease() {
+        final String logPrefix = "renewLease() - ";
+        if (!enabled) {
+            return;
+        }
+        log.trace("{}Entering Method", logPrefix);
+        long attemptStart = System.nanoTime();
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            if (!leaseTableChecked) {
+                boolean tableExists = leaseTableExists(dbConnection);
+                leaseTableChecked = true;
+                if (!tableExists) {
+                    // Older databases have no lease table. Run as before, with every node doing its own scheduled work
+                    log.error("{}Table INT_LEADER_LEASE does not exist, leader election is disabled. Create the table to run scheduled jobs on one node only", logPrefix);
+                    enabled = false;
+                    return;
+                }
+            }
+            long token = (leader ? extendLease(dbConnection) : acquireLease(dbConnection));
+            if (token > 0) {
+                if (!leader) {
+                    log.info("{}{} is now the leader with fencing token {}", logPrefix, serverId, token);
+                }
+                fencingToken = token;
+                leaderName = serverId;
+                // Counted from before the statement ran, so our view always expires before the database lease
+                leaderUntilNanos = attemptStart + TimeUnit.MILLISECONDS.toNanos(leaseDuration - safetyMargin);
+                leader = true;
+            }
+            else {
+                stepDown("lease held by " + readLeader(dbConnection));
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}Could not renew leader lease", logPrefix, ex);
+            if (leader && System.nanoTime() - leaderUntilNanos > 0) {
+                stepDown("lease could not be renewed before it expired");
+            }
+        }
+    }
+
+    private boolean leaseTableExists(Connection dbConnection) throws SQLException {
+        try (ResultSet rs = dbConnection.getMetaData().getTables(null, null, "INT_LEADER_LEASE", new String[]{"TABLE"})) {
+            return rs.next();
+        }
+    }
+
+    private long extendLease(Connection dbConnection) throws SQLException {
+        String extendSql = "UPDATE INT_LEADER_LEASE SET ExpiresAt = DATEADD(MILLISECOND, ?, GETDATE()) WHERE LeaseName = ? AND Holder = ? AND FencingToken = ?";
+        try (PreparedStatement ps = dbConnection.prepareStatement(extendSql)) {
+            ps.setLong(1, leaseDuration);
+            ps.setNString(2, LEASE_NAME);
+            ps.setNString(3, serverId);
+            ps.setLong(4, fencingToken);
+            return (ps.executeUpdate() == 1 ? fencingToken : -1);
+        }
+    }
+
+    private long acquireLease(Connection dbConnection) throws SQLException {
+        final String logPrefix = "acquireLease() - ";
+        String acquireSql = "UPDATE INT_LEADER_LEASE SET Holder = ?, FencingToken = FencingToken + 1, ExpiresAt = DATEADD(MILLISECOND, ?, GETDATE()) "
+                + "OUTPUT INSERTED.FencingToken WHERE LeaseName = ? AND ExpiresAt < GETDATE()";
+        String insertSql = "INSERT INTO INT_LEADER_LEASE (LeaseName, Holder, FencingToken, ExpiresAt) "
+                + "SELECT ?, ?, 1, DATEADD(MILLISECOND, ?, GETDATE()) WHERE NOT EXISTS (SELECT 1 FROM INT_LEADER_LEASE WHERE LeaseName = ?)";
+        try (PreparedStatement ps = dbConnection.prepareStatement(acquireSql)) {
+            ps.setNString(1, serverId);
+            ps.setLong(2, leaseDuration);
+            ps.setNString(3, LEASE_NAME);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        }
+        try (PreparedStatement ps = dbConnection.prepareStatement(insertSql)) {
+            ps.setNString(1, LEASE_NAME);
+            ps.setNString(2, serverId);
+            ps.setLong(3, leaseDuration);
+            ps.setNString(4, LEASE_NAME);
+            if (ps.executeUpdate() == 1) {
+                log.info("{}Created leader lease {}", logPrefix, LEASE_NAME);
+                return 1;
+            }
+        }
+        catch (SQLException ex) {
+            // Another node created the row at the same time
+            log.debug("{}Lost race to create leader lease: {}", logPrefix, ex.getMessage());
+        }
+        return -1;
+    }
+
+    private String readLeader(Connection dbConnection) throws SQLException {
+        String leaderSql = "SELECT Holder FROM INT_LEADER_LEASE WHERE LeaseName = ? AND ExpiresAt >= GETDATE()";
+        try (PreparedStatement ps = dbConnection.prepareStatement(leaderSql)) {
+            ps.setNString(1, LEASE_NAME);
+            try (ResultSet rs = ps.executeQuery()) {
+                leaderName = (rs.next() ? rs.getNString("Holder") : null);
+            }
+        }
+        return leaderName;
+    }
+
+    private void stepDown(String reason) {
+        final String logPrefix = "stepDown() - ";
+        if (leader) {
+            log.warn("{}{} is no longer the leader: {}", logPrefix, serverId, reason);
+        }
+        leader = false;
+    }
+
+    @PreDestroy
+    public void releaseLease() {
+        final String logPrefix = "releaseLease() - ";
+        if (!enabled || !isLeader()) {
+            return;
+        }
+        log.info("{}Releasing leader lease so another node can take over", logPrefix);
+        leader = false;
+        String releaseSql = "UPDATE INT_LEADER_LEASE SET ExpiresAt = DATEADD(SECOND, -1, GETDATE()) WHERE LeaseName = ? AND Holder = ? AND FencingToken = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(releaseSql)) {
+                ps.setNString(1, LEASE_NAME);
+                ps.setNString(2, serverId);
+                ps.setLong(3, fencingToken);
+                ps.executeUpdate();
+            }
+        }
+        catch (SQLException ex) {
+            log.warn("{}Could not release leader lease, it will expire on its own", logPrefix, ex);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isLeader() {
+        return leader && System.nanoTime() - leaderUntilNanos < 0;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    public boolean runAsLeader(String taskName, LongConsumer task) {
+        final String logPrefix = "runAsLeader() - ";
+        if (enabled && !isLeader()) {
+            log.debug("{}Not the leader, skipping {}. Leader is {}", logPrefix, taskName, leaderName);
+            return false;
+        }
+        log.info("{}Running {} as leader with fencing token {}", logPrefix, taskName, (enabled ? fencingToken : null));
+        task.accept(enabled ? fencingToken : -1);
+        return true;
+    }
+
+    public Map<String, String> getClusterState() {
+        Map<String, String> state = new LinkedHashMap<>();
+        state.put("serverId", serverId);
+        state.put("electionEnabled", String.valueOf(enabled));
+        state.put("leader", (isLeader() ? serverId : leaderName));
+        state.put("isLeader", String.valueOf(isLeader()));
+        state.put("fencingToken", String.valueOf(fencingToken));
+        return state;
+    }
+}
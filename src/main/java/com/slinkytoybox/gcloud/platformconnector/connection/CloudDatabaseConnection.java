@@ -20,9 +20,15 @@
 package com.slinkytoybox.gcloud.platformconnector.connection;
 
 import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -31,11 +37,15 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.StreamSupport;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.env.AbstractEnvironment;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.EnumerablePropertySource;
@@ -48,11 +58,14 @@ import org.springframework.stereotype.Service;
  * @author Michael Junek (michael@juneks.com.au)
  */
 @Service("CloudDatabaseConnection")
-@DependsOn({"PlatformEncryption"})
+@DependsOn({"PlatformEncryption", "LocalConfigSnapshot"})
 
 @Slf4j
 public class CloudDatabaseConnection {
 
+    private static final Pattern STATEMENT_VERB = Pattern.compile("^\\s*([A-Za-z]+)");
+    private static final Pattern STATEMENT_TABLE = Pattern.compile("\\b(?:FROM|INTO|UPDATE|MERGE)\\s+([A-Za-z_][A-Za-z0-9_.]*)", Pattern.CASE_INSENSITIVE);
+
     private final HikariDataSource poolSource = new HikariDataSource();
 
     @Value("${cloud.database.url:NOT_SET}")
@@ -67,9 +80,25 @@ public class CloudDatabaseConnection {
     @Value("${cloud.database.pool.min-size:3}")
     private int poolMinSize;
 
-    @Value("${cloud.database.pool.test-query:SELECT 1}")
+    @Value("${cloud.database.pool.max-size:10}")
+    private int poolMaxSize;
+
+    // Blank uses the driver's JDBC4 isValid() check, which is cheaper than running a query
+    @Value("${cloud.database.pool.test-query:}")
     private String poolTestQuery;
 
+    @Value("${cloud.database.pool.connection-timeout:10000}")
+    private Long poolConnectionTimeout;
+
+    @Value("${cloud.database.pool.validation-timeout:5000}")
+    private Long poolValidationTimeout;
+
+    @Value("${cloud.database.pool.max-lifetime:1800000}")
+    private Long poolMaxLifetime;
+
+    @Value("${cloud.database.pool.leak-detection-threshold:0}")
+    private Long poolLeakDetectionThreshold;
+
     @Value("${cloud.database.pool.idle-timeout:300000}")
     private Long poolIdleTimeout;
 
@@ -82,6 +111,14 @@ public class CloudDatabaseConnection {
     @Autowired
     private ConfigurableEnvironment env;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private LocalConfigSnapshot snapshot;
+
+    private boolean bootedFromSnapshot = false;
+
     @PostConstruct
     public void startDatabase() {
         final String logPrefix = "startDatabase() - ";
@@ -120,14 +157,32 @@ public class CloudDatabaseConnection {
         poolSource.setPassword(decryptedPassword);
         poolSource.setDataSourceProperties(dsProps);
         poolSource.setMinimumIdle(poolMinSize);
+        poolSource.setMaximumPoolSize(Math.max(poolMaxSize, poolMinSize));
 
-        poolSource.setConnectionTestQuery(poolTestQuery);
+        if (poolTestQuery != null && !poolTestQuery.isBlank()) {
+            poolSource.setConnectionTestQuery(poolTestQuery);
+        }
         poolSource.setPoolName("Genesys-Cloud-DB");
         poolSource.setIdleTimeout(poolIdleTimeout);
         poolSource.setKeepaliveTime(poolKeepaliveTime);
+        poolSource.setConnectionTimeout(poolConnectionTimeout);
+        poolSource.setValidationTimeout(poolValidationTimeout);
+        poolSource.setMaxLifetime(poolMaxLifetime);
+        poolSource.setLeakDetectionThreshold(poolLeakDetectionThreshold);
+        poolSource.setMetricRegistry(meterRegistry);
 
         log.trace("{}Set pool parameters: {}", logPrefix, poolSource);
 
+        Map<String, Object> snapshotOptions = snapshot.getConfigOptions();
+        if (snapshot.isLoaded() && !snapshotOptions.isEmpty()) {
+            // The pool connects on first use, and ConfigOptionRefresher reconciles the options in the background
+            env.getPropertySources().addFirst(new MapPropertySource("dbConfig", snapshotOptions));
+            bootedFromSnapshot = true;
+            log.info("{}Booted with {} configuration options from the local snapshot", logPrefix, snapshotOptions.size());
+            log.trace("{}Leaving method", logPrefix);
+            return;
+        }
+
         log.info("{}Starting database pool", logPrefix);
 
         try (Connection conn = poolSource.getConnection()) {
@@ -148,6 +203,7 @@ public class CloudDatabaseConnection {
                     log.warn("{}Could not read configuration options from database. This is not necessarilty critical", logPrefix, ex);
                 }
                 propertySources.addFirst(new MapPropertySource("dbConfig", configurationMap));
+                snapshot.saveConfigOptions(configurationMap);
                 log.trace("{}Added Config Options: {}", logPrefix, configurationMap);
             }
             else {
@@ -163,6 +219,30 @@ public class CloudDatabaseConnection {
 
     }
 
+    public boolean isBootedFromSnapshot() {
+        return bootedFromSnapshot;
+    }
+
+    @EventListener
+    public void onConfigOptionsChanged(ConfigOptionsChangedEvent event) {
+        final String logPrefix = "onConfigOptionsChanged() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!event.hasChangedPrefix("cloud.database.pool.")) {
+            return;
+        }
+        // Only the settings Hikari can change on a running pool are applied; the rest need a restart
+        HikariConfigMXBean poolConfig = poolSource.getHikariConfigMXBean();
+        int minSize = env.getProperty("cloud.database.pool.min-size", Integer.class, poolMinSize);
+        poolConfig.setMaximumPoolSize(Math.max(env.getProperty("cloud.database.pool.max-size", Integer.class, poolMaxSize), minSize));
+        poolConfig.setMinimumIdle(minSize);
+        poolConfig.setConnectionTimeout(env.getProperty("cloud.database.pool.connection-timeout", Long.class, poolConnectionTimeout));
+        poolConfig.setValidationTimeout(env.getProperty("cloud.database.pool.validation-timeout", Long.class, poolValidationTimeout));
+        poolConfig.setIdleTimeout(env.getProperty("cloud.database.pool.idle-timeout", Long.class, poolIdleTimeout));
+        poolConfig.setMaxLifetime(env.getProperty("cloud.database.pool.max-lifetime", Long.class, poolMaxLifetime));
+        poolConfig.setLeakDetectionThreshold(env.getProperty("cloud.database.pool.leak-detection-threshold", Long.class, poolLeakDetectionThreshold));
+        log.info("{}Applied updated pool settings: max {}, min idle {}, connection timeout {}", logPrefix, poolConfig.getMaximumPoolSize(), poolConfig.getMinimumIdle(), poolConfig.getConnectionTimeout());
+    }
+
     @PreDestroy
     public void stopDatabase() {
         final String logPrefix = "stopDatabase() - ";
@@ -176,20 +256,63 @@ public class CloudDatabaseConnection {
         final String logPrefix = "getDatabaseConnection() - ";
         log.trace("{}Entering Method", logPrefix);
 
+        // Hikari already validates connections that have been idle, so there is no extra round trip here
         try {
             Connection conn = poolSource.getConnection();
-            if (conn.isValid(5)) {
-                log.trace("{}Returning active connection", logPrefix);
-                return conn;
-            }
-            else {
-                log.error("{}Database did not respond within 5 seconds", logPrefix);
-                throw new SQLException("Database did not respond within 5 seconds");
-            }
+            log.trace("{}Returning active connection", logPrefix);
+            return timedConnection(conn);
         }
         catch (SQLException ex) {
             log.error("{}SQL Exception encountered getting connection from pool!", logPrefix);
             throw ex;
         }
     }
+
+    private Connection timedConnection(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            Object result = invokeTarget(conn, method, args);
+            if (result instanceof PreparedStatement ps && method.getName().equals("prepareStatement")) {
+                return timedStatement(ps, statementLabel((String) args[0]));
+            }
+            return result;
+        });
+    }
+
+    private PreparedStatement timedStatement(PreparedStatement ps, String label) {
+        Timer timer = Timer.builder("platformconnector.db.statement")
+                .description("Time taken to execute the container's own SQL statements")
+                .tag("statement", label)
+                .register(meterRegistry);
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+            if (!method.getName().startsWith("execute")) {
+                return invokeTarget(ps, method, args);
+            }
+            long startTime = System.nanoTime();
+            try {
+                return invokeTarget(ps, method, args);
+            }
+            finally {
+                timer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    private Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private String statementLabel(String sql) {
+        // Verb and first table keep the tag set small and readable, e.g. "SELECT INT_SECURE_KEY"
+        Matcher verb = STATEMENT_VERB.matcher(sql);
+        if (!verb.find()) {
+            return "OTHER";
+        }
+        Matcher table = STATEMENT_TABLE.matcher(sql);
+        return verb.group(1).toUpperCase() + (table.find() ? " " + table.group(1) : "");
+    }
 }
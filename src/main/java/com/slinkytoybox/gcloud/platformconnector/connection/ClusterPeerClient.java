@@ -0,0 +1,229 @@
+/*
+ *   platformconnector - ClusterPeerClient.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.connection;
+
+import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import jakarta.annotation.PostConstruct;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+/**
+ * Calls the other connector nodes listed in INT_SERVER. All peers are called concurrently over a single shared,
+ * keep-alive HTTP client, bounded by an overall deadline.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Service("ClusterPeerClient")
+@DependsOn({"CloudDatabaseConnection", "PlatformEncryption"})
+@Slf4j
+public class ClusterPeerClient {
+
+    public static final String SIGNATURE_HEADER = "X-Cluster-Signature";
+
+    @Autowired
+    private CloudDatabaseConnection cdc;
+
+    @Autowired
+    private PlatformEncryption encryptor;
+
+    @Value("${server.id:DefaultServerId}")
+    private String serverId;
+
+    @Value("${cluster.peer.connect-timeout:2000}")
+    private Long connectTimeout;
+
+    @Value("${cluster.peer.request-timeout:4000}")
+    private Long requestTimeout;
+
+    @Value("${cluster.peer.deadline:5000}")
+    private Long deadline;
+
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void createClient() {
+        final String logPrefix = "createClient() - ";
+        log.trace("{}Entering Method", logPrefix);
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        log.debug("{}Peer HTTP client created with connect timeout {}ms, request timeout {}ms, deadline {}ms", logPrefix, connectTimeout, requestTimeout, deadline);
+    }
+
+    public Map<String, String> getPeerServers() throws SQLException {
+        final String logPrefix = "getPeerServers() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, String> peers = getAllServers();
+        // Server names are compared without case, as everywhere else the server id is matched
+        peers.keySet().removeIf(serverName -> serverName != null && serverName.equalsIgnoreCase(serverId));
+        log.debug("{}I am {} - found {} peer servers: {}", logPrefix, serverId, peers.size(), peers);
+        return peers;
+    }
+
+    public Map<String, String> getAllServers() throws SQLException {
+        final String logPrefix = "getAllServers() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String serverSql = "SELECT ServerName, ServerUrl FROM INT_SERVER";
+        Map<String, String> servers = new LinkedHashMap<>();
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(serverSql)) {
+                log.info("{}Getting servers from Database", logPrefix);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        servers.put(rs.getNString("ServerName"), rs.getNString("ServerUrl"));
+                    }
+                }
+            }
+        }
+        return servers;
+    }
+
+    public Map<String, PeerResult> postToPeers(Map<String, String> peers, String path) {
+        final String logPrefix = "postToPeers() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long startTime = System.nanoTime();
+        Map<String, PeerResult> results = new LinkedHashMap<>();
+        Map<String, CompletableFuture<PeerResult>> pending = new LinkedHashMap<>();
+
+        peers.forEach((serverName, serverUrl) -> {
+            PeerResult result = new PeerResult().setServerName(serverName).setServerUrl(serverUrl);
+            results.put(serverName, result);
+            if (serverUrl == null || serverUrl.isBlank() || !serverUrl.startsWith("http")) {
+                log.error("{}Server {} URL is invalid: {}", logPrefix, serverName, serverUrl);
+                result.setErrorMessage("Invalid server URL");
+                return;
+            }
+            try {
+                pending.put(serverName, sendAsync(serverName, serverUrl, path, null, startTime));
+            }
+            catch (IllegalArgumentException ex) {
+                log.error("{}Server {} URL is invalid: {}", logPrefix, serverName, serverUrl, ex);
+                result.setErrorMessage("Invalid server URL: " + ex.getMessage());
+            }
+        });
+
+        long deadlineNanos = startTime + TimeUnit.MILLISECONDS.toNanos(deadline);
+        pending.forEach((serverName, future) -> {
+            try {
+                results.put(serverName, future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            catch (TimeoutException ex) {
+                future.cancel(true);
+                results.get(serverName).setErrorMessage("No response within overall deadline of " + deadline + "ms");
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                results.get(serverName).setErrorMessage("Interrupted waiting for response");
+            }
+            catch (ExecutionException ex) {
+                results.get(serverName).setErrorMessage(ex.getCause().getMessage());
+            }
+        });
+
+        results.values().forEach(result -> {
+            if (result.isSuccess()) {
+                log.debug("{}Successfully called {} in {}ms, response {}", logPrefix, result.getServerName(), result.getDurationMillis(), result.getResponse());
+            }
+            else {
+                log.error("{}Call to {} failed. Status {}, error: {}", logPrefix, result.getServerName(), result.getStatusCode(), result.getErrorMessage());
+            }
+        });
+        log.info("{}Called {} peers in {}ms", logPrefix, results.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return results;
+    }
+
+    public CompletableFuture<PeerResult> postJsonAsync(String serverName, String serverUrl, String path, String jsonBody) {
+        return sendAsync(serverName, serverUrl, path, jsonBody, System.nanoTime());
+    }
+
+    private CompletableFuture<PeerResult> sendAsync(String serverName, String serverUrl, String path, String jsonBody, long startTime) {
+        final String logPrefix = "sendAsync() - ";
+        if (serverUrl == null || serverUrl.isBlank() || !serverUrl.startsWith("http")) {
+            throw new IllegalArgumentException("Server " + serverName + " URL is invalid: " + serverUrl);
+        }
+        URI uri = URI.create(serverUrl + (serverUrl.endsWith("/") ? "" : "/") + path);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(requestTimeout));
+        if (jsonBody == null) {
+            builder.POST(HttpRequest.BodyPublishers.noBody());
+        }
+        else {
+            builder.header("Content-Type", "application/json")
+                    .header(SIGNATURE_HEADER, encryptor.sign(jsonBody))
+                    .POST(HttpRequest.BodyPublishers.ofString(jsonBody));
+        }
+        log.debug("{}Sending request to {}", logPrefix, uri);
+        return httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString())
+                .handle((response, ex) -> completeResult(serverName, serverUrl, response, ex, startTime));
+    }
+
+    private PeerResult completeResult(String serverName, String serverUrl, HttpResponse<String> response, Throwable ex, long startTime) {
+        PeerResult result = new PeerResult().setServerName(serverName).setServerUrl(serverUrl);
+        result.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        if (ex != null) {
+            result.setErrorMessage(ex.getClass().getSimpleName() + ": " + ex.getMessage());
+        }
+        else {
+            result.setStatusCode(response.statusCode());
+            result.setResponse(response.body());
+            result.setSignature(response.headers().firstValue(SIGNATURE_HEADER).orElse(null));
+            result.setSuccess(response.statusCode() == 200);
+            if (!result.isSuccess()) {
+                result.setErrorMessage("Received HTTP status code " + response.statusCode());
+            }
+        }
+        return result;
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class PeerResult {
+
+        private String serverName;
+        private String serverUrl;
+        private boolean success = false;
+        private int statusCode = -1;
+        private String response;
+        private String signature;
+        private String errorMessage;
+        private long durationMillis = -1;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *   platformconnector - ConfigOptionRefresher.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.connection;
+
+import jakarta.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the dbConfig property source in step with COM_CONFIG_OPTION so tuning values can be changed without a
+ * restart. A checksum of the table is polled first and the options are only re-read when it moves. The property
+ * source is swapped in one step and a {@link ConfigOptionsChangedEvent} names the keys that changed.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Service
+@Slf4j
+public class ConfigOptionRefresher {
+
+    private static final String SOURCE_NAME = "dbConfig";
+
+    @Autowired
+    private CloudDatabaseConnection cloudDatabaseConnection;
+
+    @Autowired
+    private ConfigurableEnvironment env;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private LocalConfigSnapshot snapshot;
+
+    @Value("${cloud.config.refresh-enabled:true}")
+    private Boolean refreshEnabled;
+
+    private Long lastChecksum = null;
+
+    @PostConstruct
+    public void reconcileSnapshot() {
+        if (!cloudDatabaseConnection.isBootedFromSnapshot()) {
+            return;
+        }
+        snapshot.reconcile("configuration options", () -> {
+            try {
+                refresh(true);
+            }
+            catch (SQLException ex) {
+                throw new IllegalStateException("Could not read configuration options", ex);
+            }
+        });
+    }
+
+    @Scheduled(initialDelayString = "${cloud.config.refresh-interval:60000}", fixedDelayString = "${cloud.config.refresh-interval:60000}")
+    public void scheduledRefresh() {
+        final String logPrefix = "scheduledRefresh() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!refreshEnabled) {
+            log.trace("{}Configuration refresh is disabled", logPrefix);
+            return;
+        }
+        try {
+            refresh(false);
+        }
+        catch (SQLException ex) {
+            log.warn("{}Could not refresh configuration options from database. Keeping the current values", logPrefix, ex);
+        }
+    }
+
+    public synchronized Set<String> refresh(boolean force) throws SQLException {
+        final String logPrefix = "refresh() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Set<String> changedKeys = new HashSet<>();
+        Map<String, Object> latest = new HashMap<>();
+        try (Connection conn = cloudDatabaseConnection.getDatabaseConnection()) {
+            long checksum;
+            try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) AS OptionCount, COALESCE(CHECKSUM_AGG(BINARY_CHECKSUM(OptionKey, OptionValue)), 0) AS OptionChecksum FROM COM_CONFIG_OPTION;")) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    // Fold the count in so that adding and removing rows with cancelling checksums is still seen
+                    checksum = rs.getLong("OptionCount") * 31 + rs.getLong("OptionChecksum");
+                }
+            }
+            if (!force && lastChecksum != null && lastChecksum == checksum) {
+                log.trace("{}Configuration options unchanged", logPrefix);
+                return changedKeys;
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement("SELECT OptionKey, OptionValue FROM COM_CONFIG_OPTION;")) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        latest.put(rs.getNString("OptionKey"), rs.getNString("OptionValue"));
+                    }
+                }
+            }
+            lastChecksum = checksum;
+
+            Map<String, Object> current = getCurrentOptions();
+            latest.forEach((key, value) -> {
+                if (!current.containsKey(key) || !Objects.equals(current.get(key), value)) {
+                    changedKeys.add(key);
+                }
+            });
+            current.keySet().stream().filter(key -> !latest.containsKey(key)).forEach(changedKeys::add);
+        }
+
+        if (changedKeys.isEmpty()) {
+            log.debug("{}Configuration table changed but no option values differ", logPrefix);
+            return changedKeys;
+        }
+
+        // Only the changed keys are applied; everything else keeps its existing value
+        Map<String, Object> updated = new HashMap<>(getCurrentOptions());
+        for (String key : changedKeys) {
+            if (latest.containsKey(key)) {
+                updated.put(key, latest.get(key));
+            }
+            else {
+                updated.remove(key);
+            }
+        }
+        MutablePropertySources propertySources = env.getPropertySources();
+        MapPropertySource newSource = new MapPropertySource(SOURCE_NAME, updated);
+        if (propertySources.contains(SOURCE_NAME)) {
+            propertySources.replace(SOURCE_NAME, newSource);
+        }
+        else {
+            propertySources.addFirst(newSource);
+        }
+        snapshot.saveConfigOptions(updated);
+        log.info("{}Reloaded {} changed configuration options: {}", logPrefix, changedKeys.size(), changedKeys);
+        eventPublisher.publishEvent(new ConfigOptionsChangedEvent(this, changedKeys));
+        return changedKeys;
+    }
+
+    private Map<String, Object> getCurrentOptions() {
+        PropertySource<?> source = env.getPropertySources().get(SOURCE_NAME);
+        if (source instanceof MapPropertySource mapSource) {
+            return mapSource.getSource();
+        }
+        return Map.of();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *   platformconnector - ConfigOptionsChangedEvent.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.connection;
+
+import java.util.Set;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published after COM_CONFIG_OPTION has been re-read and the dbConfig property source replaced. Only the keys that
+ * were added, changed or removed are included.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class ConfigOptionsChangedEvent extends ApplicationEvent {
+
+    private final Set<String> changedKeys;
+
+    public ConfigOptionsChangedEvent(Object source, Set<String> changedKeys) {
+        super(source);
+        this.changedKeys = Set.copyOf(changedKeys);
+    }
+
+    public Set<String> getChangedKeys() {
+        return changedKeys;
+    }
+
+    public boolean hasChangedPrefix(String prefix) {
+        return changedKeys.stream().anyMatch(key -> key.startsWith(prefix));
+    }
+}
@@ -21,8 +21,13 @@ package com.slinkytoybox.gcloud.platformconnector.connection;
 
 import com.mypurecloud.sdk.v2.*;
 import com.mypurecloud.sdk.v2.extensions.AuthResponse;
+import com.slinkytoybox.gcloud.platformconnector.init.StartupCoordinator;
 import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import jakarta.annotation.PostConstruct;
 import java.sql.*;
 import org.springframework.beans.factory.annotation.Value;
@@ -48,6 +53,12 @@ public class GCloudAPIConnection {
     @Autowired 
     private PlatformEncryption platformEncryption;
 
+    @Autowired
+    private LocalConfigSnapshot snapshot;
+
+    @Autowired
+    private StartupCoordinator startupCoordinator;
+
     @Value("${genesys.cloud.api-timeout:10000}")
     private Integer apiTimeout;
 
@@ -60,9 +71,11 @@ public class GCloudAPIConnection {
     @Value("${cloud.platform.id:-1}")
     private Long cloudPlatformId;
 
-    private CloudPlatform cp = null;
+    private volatile CloudPlatform cp = null;
 
-    private String platformGuid;
+    private volatile String platformGuid;
+
+    private volatile CompletableFuture<Void> authentication = null;
 
     @PostConstruct
     private void init() throws SQLException {
@@ -75,8 +88,58 @@ public class GCloudAPIConnection {
 
         log.info("{}Initialisating Genesys Cloud connections", logPrefix);
 
-        log.debug("{}Getting list of cloud plaforms from Database", logPrefix);
+        CloudPlatform cached = snapshot.getCloudPlatform(cloudPlatformId);
+        if (cached != null) {
+            // Requests can be authorised against the cached organisation straight away; the API client follows
+            cp = cached;
+            this.platformGuid = cp.getOrganisationGuid();
+            log.info("{}Cloud Platform {} loaded from the local snapshot, authenticating in the background", logPrefix, cp);
+            CompletableFuture<Void> reconciled = new CompletableFuture<>();
+            authentication = reconciled;
+            snapshot.reconcile("Genesys Cloud platform", () -> {
+                try {
+                    reconcilePlatform();
+                }
+                finally {
+                    reconciled.complete(null);
+                }
+            });
+            return;
+        }
+
+        // The platform row is enough for the rest of startup; authentication runs alongside it
+        CloudPlatform platform = readCloudPlatform();
+        cp = platform;
+        this.platformGuid = platform.getOrganisationGuid();
+        authentication = startupCoordinator.submit("Genesys Cloud authentication", true, () -> {
+            initCloudPlatform(platform);
+            snapshot.savePlatform(platform);
+            log.info("{}Cloud Platform {} Initialised", logPrefix, platform);
+        });
+    }
 
+    private void reconcilePlatform() {
+        final String logPrefix = "reconcilePlatform() - ";
+        log.trace("{}Entering Method", logPrefix);
+        try {
+            CloudPlatform fresh = initCloudPlatform(readCloudPlatform());
+            if (!fresh.getOrganisationGuid().equals(platformGuid)) {
+                log.warn("{}Organisation changed from {} to {} since the snapshot was written", logPrefix, platformGuid, fresh.getOrganisationGuid());
+            }
+            cp = fresh;
+            this.platformGuid = fresh.getOrganisationGuid();
+            snapshot.savePlatform(fresh);
+            log.info("{}Cloud Platform {} Initialised", logPrefix, fresh);
+        }
+        catch (SQLException ex) {
+            throw new IllegalStateException("Could not read cloud platform from database", ex);
+        }
+    }
+
+    private CloudPlatform readCloudPlatform() throws SQLException {
+        final String logPrefix = "readCloudPlatform() - ";
+        log.debug("{}Getting list of cloud plaforms from Database", logPrefix);
+        CloudPlatform platform = null;
         String platformSql = "SELECT Id, Name, OrganisationName, OrganisationId, OrganisationGuid, ApiRegion, ApiClientId, ApiClientSecret, AzureAdAccessGroup FROM COM_CLOUD_PLATFORM WHERE Enabled = 1 AND Id=?";
         try (Connection dbConnection = dbConn.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(platformSql)) {
@@ -84,7 +147,7 @@ public class GCloudAPIConnection {
                 try (ResultSet rs = ps.executeQuery()) {
                     log.info("{}Finding Genesys cloud instance", logPrefix);
                     while (rs.next()) {
-                        cp = new CloudPlatform()
+                        platform = new CloudPlatform()
                                 .setId(rs.getLong("Id"))
                                 .setName(rs.getString("Name"))
                                 .setOrganisationName(rs.getNString("OrganisationName"))
@@ -94,19 +157,16 @@ public class GCloudAPIConnection {
                                 .setApiClientSecret(platformEncryption.decrypt(rs.getNString("APIClientSecret")))
                                 .setAzureAdAccessGroup(rs.getNString("AzureAdAccessGroup"))
                                 .setOrganisationGuid(rs.getNString("OrganisationGuid"));
-                        log.info("{}Got Cloud Platform {} - attempting to connect", logPrefix, cp);
-
-                        cp = initCloudPlatform(cp);
+                        log.info("{}Got Cloud Platform {} - attempting to connect", logPrefix, platform);
                     }
-                    if (cp == null) {
+                    if (platform == null) {
                         log.error("{}Could not find cloud platform with id {} in database", logPrefix, cloudPlatformId);
                         throw new IllegalArgumentException("");
                     }
                 }
             }
         }
-        this.platformGuid = cp.getOrganisationGuid();
-        log.info("{}Cloud Platform {} Initialised", logPrefix, cp);
+        return platform;
     }
 
     private CloudPlatform initCloudPlatform(CloudPlatform cp) {
@@ -162,6 +222,22 @@ public class GCloudAPIConnection {
             log.error("{}Cloud platform does not exist", logPrefix);
             return null;
         }
+        CompletableFuture<Void> auth = authentication;
+        if (auth != null && !auth.isDone()) {
+            log.debug("{}Waiting for Genesys Cloud authentication to finish", logPrefix);
+            try {
+                auth.get(apiTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException | TimeoutException ex) {
+                log.error("{}Genesys Cloud authentication did not complete", logPrefix, ex);
+            }
+        }
+        if (cp.getApiClient() == null) {
+            log.warn("{}Cloud platform has not finished authenticating", logPrefix);
+        }
         return cp.getApiClient();
     }
 
@@ -0,0 +1,289 @@
+/*
+ *   platformconnector - LocalConfigSnapshot.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.connection;
+
+import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+/**
+ * Encrypted local copy of the platform row, secure key and configuration options, rewritten after each successful
+ * load from the database. When a recent snapshot exists the node boots from it straight away, and the authoritative
+ * sources are read again on a background thread so a slow database or Genesys Cloud does not hold up startup.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Service("LocalConfigSnapshot")
+@DependsOn({"PlatformEncryption"})
+@Slf4j
+public class LocalConfigSnapshot {
+
+    private static final String PLATFORM_PREFIX = "platform.";
+    private static final String CONFIG_PREFIX = "config.";
+    private static final String KEY_VALUE = "securekey.value";
+    private static final String KEY_VERSION = "securekey.version";
+    private static final String KEY_CHECKED = "securekey.checked";
+    private static final String WRITTEN_AT = "snapshot.written";
+
+    @Autowired
+    private PlatformEncryption encryptor;
+
+    @Value("${cloud.snapshot.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${cloud.snapshot.file:config-snapshot.enc}")
+    private String snapshotFile;
+
+    @Value("${cloud.snapshot.max-age:604800000}")
+    private Long maxAge;
+
+    @Value("${cloud.snapshot.key-max-age:86400000}")
+    private Long keyMaxAge;
+
+    private final Properties snapshot = new Properties();
+    private boolean loaded = false;
+
+    // One thread, so reconciliation runs in the order the beans booted: configuration, platform, then key
+    private final ExecutorService reconcileExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "config-reconcile");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    public void loadSnapshot() {
+        final String logPrefix = "loadSnapshot() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Path path = Path.of(snapshotFile);
+        if (!enabled || !Files.exists(path)) {
+            log.info("{}No local configuration snapshot in use, booting from the database", logPrefix);
+            return;
+        }
+        try {
+            String plainText = encryptor.decrypt(Files.readString(path, StandardCharsets.UTF_8).trim());
+            if (plainText == null) {
+                log.warn("{}Local configuration snapshot {} could not be decrypted, ignoring it", logPrefix, path);
+                return;
+            }
+            Properties read = new Properties();
+            read.load(new StringReader(plainText));
+            long writtenAt = Long.parseLong(read.getProperty(WRITTEN_AT, "0"));
+            if (System.currentTimeMillis() - writtenAt > maxAge) {
+                log.warn("{}Local configuration snapshot {} is older than {}ms, ignoring it", logPrefix, path, maxAge);
+                return;
+            }
+            long keyCheckedAt = Long.parseLong(read.getProperty(KEY_CHECKED, "0"));
+            if (read.getProperty(KEY_VALUE) != null && System.currentTimeMillis() - keyCheckedAt > keyMaxAge) {
+                // The key has probably been rotated since, so read it from the database before serving anything
+                log.warn("{}Secure key in local configuration snapshot {} was last checked more than {}ms ago, ignoring it", logPrefix, path, keyMaxAge);
+                read.remove(KEY_VALUE);
+                read.remove(KEY_VERSION);
+                read.remove(KEY_CHECKED);
+            }
+            synchronized (snapshot) {
+                snapshot.putAll(read);
+            }
+            loaded = true;
+            log.info("{}Loaded local configuration snapshot {}", logPrefix, path);
+        }
+        catch (IOException | RuntimeException ex) {
+            log.warn("{}Could not read local configuration snapshot {}, booting from the database", logPrefix, path, ex);
+        }
+    }
+
+    @PreDestroy
+    public void stopReconcile() {
+        reconcileExecutor.shutdownNow();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void reconcile(String description, Runnable task) {
+        final String logPrefix = "reconcile() - ";
+        log.info("{}Queued background reconciliation of {}", logPrefix, description);
+        reconcileExecutor.submit(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                task.run();
+                log.info("{}Reconciled {} in {}ms", logPrefix, description, System.currentTimeMillis() - startTime);
+            }
+            catch (RuntimeException ex) {
+                log.error("{}Could not reconcile {}, continuing with the snapshot values", logPrefix, description, ex);
+            }
+        });
+    }
+
+    public Map<String, Object> getConfigOptions() {
+        Map<String, Object> options = new HashMap<>();
+        synchronized (snapshot) {
+            snapshot.stringPropertyNames().stream()
+                    .filter(prop -> prop.startsWith(CONFIG_PREFIX))
+                    .forEach(prop -> options.put(prop.substring(CONFIG_PREFIX.length()), snapshot.getProperty(prop)));
+        }
+        return options;
+    }
+
+    public CloudPlatform getCloudPlatform(Long cloudPlatformId) {
+        synchronized (snapshot) {
+            if (!loaded || !String.valueOf(cloudPlatformId).equals(snapshot.getProperty(PLATFORM_PREFIX + "Id"))) {
+                return null;
+            }
+            return new CloudPlatform()
+                    .setId(cloudPlatformId)
+                    .setName(snapshot.getProperty(PLATFORM_PREFIX + "Name"))
+                    .setOrganisationName(snapshot.getProperty(PLATFORM_PREFIX + "OrganisationName"))
+                    .setOrganisationId(snapshot.getProperty(PLATFORM_PREFIX + "OrganisationId"))
+                    .setOrganisationGuid(snapshot.getProperty(PLATFORM_PREFIX + "OrganisationGuid"))
+                    .setApiRegion(snapshot.getProperty(PLATFORM_PREFIX + "ApiRegion"))
+                    .setApiClientId(snapshot.getProperty(PLATFORM_PREFIX + "ApiClientId"))
+                    .setApiClientSecret(snapshot.getProperty(PLATFORM_PREFIX + "ApiClientSecret"))
+                    .setAzureAdAccessGroup(snapshot.getProperty(PLATFORM_PREFIX + "AzureAdAccessGroup"));
+        }
+    }
+
+    public String getSecureKey() {
+        return (loaded ? snapshot.getProperty(KEY_VALUE) : null);
+    }
+
+    public LocalDateTime getSecureKeyVersion() {
+        String version = (loaded ? snapshot.getProperty(KEY_VERSION) : null);
+        return (version == null ? null : LocalDateTime.parse(version));
+    }
+
+    public void saveConfigOptions(Map<String, Object> options) {
+        synchronized (snapshot) {
+            snapshot.stringPropertyNames().stream().filter(prop -> prop.startsWith(CONFIG_PREFIX)).forEach(snapshot::remove);
+            options.forEach((key, value) -> {
+                if (value != null) {
+                    snapshot.setProperty(CONFIG_PREFIX + key, value.toString());
+                }
+            });
+            writeSnapshot();
+        }
+    }
+
+    public void savePlatform(CloudPlatform cp) {
+        synchronized (snapshot) {
+            snapshot.stringPropertyNames().stream().filter(prop -> prop.startsWith(PLATFORM_PREFIX)).forEach(snapshot::remove);
+            putIfSet(PLATFORM_PREFIX + "Id", cp.getId());
+            putIfSet(PLATFORM_PREFIX + "Name", cp.getName());
+            putIfSet(PLATFORM_PREFIX + "OrganisationName", cp.getOrganisationName());
+            putIfSet(PLATFORM_PREFIX + "OrganisationId", cp.getOrganisationId());
+            putIfSet(PLATFORM_PREFIX + "OrganisationGuid", cp.getOrganisationGuid());
+            putIfSet(PLATFORM_PREFIX + "ApiRegion", cp.getApiRegion());
+            putIfSet(PLATFORM_PREFIX + "ApiClientId", cp.getApiClientId());
+            putIfSet(PLATFORM_PREFIX + "ApiClientSecret", cp.getApiClientSecret());
+            putIfSet(PLATFORM_PREFIX + "AzureAdAccessGroup", cp.getAzureAdAccessGroup());
+            writeSnapshot();
+        }
+    }
+
+    public void saveSecureKey(String secureKey, LocalDateTime keyVersion) {
+        if (secureKey == null || keyVersion == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            if (secureKey.equals(snapshot.getProperty(KEY_VALUE)) && keyVersion.toString().equals(snapshot.getProperty(KEY_VERSION))) {
+                return;
+            }
+            snapshot.setProperty(KEY_VALUE, secureKey);
+            snapshot.setProperty(KEY_VERSION, keyVersion.toString());
+            snapshot.setProperty(KEY_CHECKED, String.valueOf(System.currentTimeMillis()));
+            writeSnapshot();
+        }
+    }
+
+    public void confirmSecureKey(LocalDateTime keyVersion) {
+        synchronized (snapshot) {
+            if (keyVersion == null || !keyVersion.toString().equals(snapshot.getProperty(KEY_VERSION))) {
+                return;
+            }
+            // Only rewrite the file once the last check is halfway to expiring, not on every poll
+            long checkedAt = Long.parseLong(snapshot.getProperty(KEY_CHECKED, "0"));
+            if (System.currentTimeMillis() - checkedAt > keyMaxAge / 2) {
+                snapshot.setProperty(KEY_CHECKED, String.valueOf(System.currentTimeMillis()));
+                writeSnapshot();
+            }
+        }
+    }
+
+    private void putIfSet(String key, Object value) {
+        if (value != null) {
+            snapshot.setProperty(key, value.toString());
+        }
+    }
+
+    private void writeSnapshot() {
+        final String logPrefix = "writeSnapshot() - ";
+        if (!enabled) {
+            return;
+        }
+        snapshot.setProperty(WRITTEN_AT, String.valueOf(System.currentTimeMillis()));
+        Path path = Path.of(snapshotFile).toAbsolutePath();
+        Path temp = null;
+        try {
+            StringWriter writer = new StringWriter();
+            snapshot.store(writer, null);
+            temp = Files.createTempFile(path.getParent(), ".config-snapshot", ".tmp");
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            }
+            catch (UnsupportedOperationException ex) {
+                log.trace("{}File system does not support POSIX permissions", logPrefix);
+            }
+            Files.writeString(temp, encryptor.encrypt(writer.toString()), StandardCharsets.UTF_8);
+            // Readers only ever see a complete snapshot
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("{}Wrote local configuration snapshot {}", logPrefix, path);
+        }
+        catch (IOException | RuntimeException ex) {
+            log.warn("{}Could not write local configuration snapshot {}", logPrefix, path, ex);
+            try {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            catch (IOException cleanupEx) {
+                log.trace("{}Could not remove temporary snapshot {}", logPrefix, temp);
+            }
+        }
+    }
+}
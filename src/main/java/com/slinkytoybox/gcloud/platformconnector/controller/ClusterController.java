@@ -0,0 +1,79 @@
+/*
+ *   platformconnector - ClusterController.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMember;
+import com.slinkytoybox.gcloud.platformconnector.cluster.ClusterMembership;
+import com.slinkytoybox.gcloud.platformconnector.connection.ClusterPeerClient;
+import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@RestController
+@RequestMapping("/cluster")
+public class ClusterController {
+
+    @Autowired
+    private ClusterMembership clusterMembership;
+
+    @Autowired
+    private PlatformEncryption encryptor;
+
+    @PostMapping(path = "/gossip", consumes = "application/json", produces = "application/json")
+    public ResponseEntity<String> gossip(@RequestBody String body, @RequestHeader(value = ClusterPeerClient.SIGNATURE_HEADER, required = false) String signature) {
+        final String logPrefix = "gossip() - ";
+        log.trace("{}Entering method", logPrefix);
+        try {
+            String response = clusterMembership.receiveGossip(body, signature);
+            return ResponseEntity.ok().header(ClusterPeerClient.SIGNATURE_HEADER, encryptor.sign(response)).body(response);
+        }
+        catch (SecurityException ex) {
+            log.warn("{}Rejected gossip: {}", logPrefix, ex.getMessage());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(null);
+        }
+        catch (JsonProcessingException ex) {
+            log.warn("{}Invalid gossip message", logPrefix, ex);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+        }
+    }
+
+    @GetMapping(path = "/members", produces = "application/json")
+    public ResponseEntity<List<ClusterMember>> getMembers() {
+        final String logPrefix = "getMembers() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /cluster/members", logPrefix);
+        return ResponseEntity.ok(clusterMembership.getMembers());
+    }
+}
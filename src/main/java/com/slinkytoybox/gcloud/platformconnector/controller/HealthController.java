@@ -20,14 +20,19 @@
 package com.slinkytoybox.gcloud.platformconnector.controller;
 
 import com.slinkytoybox.gcloud.platformconnector.businesslogic.MonitoringLogic;
-import com.slinkytoybox.gcloud.platformconnector.dto.response.monitoring.*;
-import java.util.List;
+import com.slinkytoybox.gcloud.platformconnector.businesslogic.MonitoringLogic.SerializedResponse;
+import com.slinkytoybox.gcloud.platformconnector.init.StartupCoordinator;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginWatchdog;
+import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 /**
  *
@@ -41,44 +46,80 @@ public class HealthController {
     @Autowired
     private MonitoringLogic monitoringLogic;
 
+    @Autowired
+    private PluginWatchdog pluginWatchdog;
+
+    @Autowired
+    private StartupCoordinator startupCoordinator;
+
     @GetMapping(path = "/discovery", produces = "application/json")
-    public ResponseEntity<List<DiscoveryResponse>> getHealthDiscovery() {
+    public ResponseEntity<byte[]> getHealthDiscovery(WebRequest webReq) {
         final String logPrefix = "getHealthDiscovery() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Getting Zabbix discovery records", logPrefix);
-        return ResponseEntity.ok(monitoringLogic.getDiscovery());
+        return conditionalResponse(webReq, monitoringLogic.getCachedDiscovery("discovery", monitoringLogic::getDiscovery));
     }
 
     @GetMapping(path = "/discovery/plugins", produces = "application/json")
-    public ResponseEntity<List<PluginDiscoveryResponse>> getHealthPluginDiscovery() {
+    public ResponseEntity<byte[]> getHealthPluginDiscovery(WebRequest webReq) {
         final String logPrefix = "getHealthPluginDiscovery() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Getting Zabbix discovery records", logPrefix);
-        return ResponseEntity.ok(monitoringLogic.getPluginDiscovery());
+        return conditionalResponse(webReq, monitoringLogic.getCachedDiscovery("plugins", monitoringLogic::getPluginDiscovery));
     }
 
     @GetMapping(path = "/discovery/metrics", produces = "application/json")
-    public ResponseEntity<List<MetricDiscoveryResponse>> getHealthMetricDiscovery() {
+    public ResponseEntity<byte[]> getHealthMetricDiscovery(WebRequest webReq) {
         final String logPrefix = "getHealthMetricDiscovery() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Getting Zabbix discovery records", logPrefix);
-        return ResponseEntity.ok(monitoringLogic.getMetricDiscovery());
+        return conditionalResponse(webReq, monitoringLogic.getCachedDiscovery("metrics", monitoringLogic::getMetricDiscovery));
     }
 
     @GetMapping(path = "/discovery/components", produces = "application/json")
-    public ResponseEntity<List<ComponentDiscoveryResponse>> getHealthComponentDiscovery() {
+    public ResponseEntity<byte[]> getHealthComponentDiscovery(WebRequest webReq) {
         final String logPrefix = "getHealthComponentDiscovery() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Getting Zabbix discovery records", logPrefix);
-        return ResponseEntity.ok(monitoringLogic.getComponentDiscovery());
+        return conditionalResponse(webReq, monitoringLogic.getCachedDiscovery("components", monitoringLogic::getComponentDiscovery));
     }
 
     @GetMapping(path = "/report", produces = "application/json")
-    public ResponseEntity<MonitoringReportResponse> getHealthReport() {
+    public ResponseEntity<byte[]> getHealthReport(WebRequest webReq) {
         final String logPrefix = "getHealthReport() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Getting health report", logPrefix);
-        return ResponseEntity.ok(monitoringLogic.getHealthReport());
+        return conditionalResponse(webReq, monitoringLogic.getSerializedHealthReport());
+    }
+
+    @GetMapping(path = "/stuck", produces = "text/plain")
+    public ResponseEntity<String> getStuckCalls() {
+        final String logPrefix = "getStuckCalls() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Getting stuck plugin calls", logPrefix);
+        return ResponseEntity.ok(pluginWatchdog.getStuckCallReport());
+    }
+
+    @GetMapping(path = "/startup", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getStartup() {
+        final String logPrefix = "getStartup() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Getting startup timeline", logPrefix);
+        return ResponseEntity.ok(startupCoordinator.getStartupReport());
+    }
+
+    private ResponseEntity<byte[]> conditionalResponse(WebRequest webReq, SerializedResponse response) {
+        final String logPrefix = "conditionalResponse() - ";
+        log.trace("{}Entering method", logPrefix);
+        if (webReq.checkNotModified(response.getETag())) {
+            log.debug("{}Client copy matches ETag {}, returning 304", logPrefix, response.getETag());
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(response.getETag()).build();
+        }
+        log.debug("{}Returning {} bytes with ETag {}", logPrefix, response.getBody().length, response.getETag());
+        return ResponseEntity.ok()
+                .eTag(response.getETag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(response.getBody());
     }
 
 }
@@ -0,0 +1,119 @@
+/*
+ *   platformconnector - JfrController.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.controller;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.JfrRecordingManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@RestController
+@Lazy
+@RequestMapping("/health/jfr")
+public class JfrController {
+
+    @Autowired
+    private JfrRecordingManager recordingManager;
+
+    // Recordings show what the node is doing and these endpoints are not authenticated, so they are off unless asked for
+    @Value("${monitoring.jfr.enabled:false}")
+    private Boolean enabled;
+
+    @GetMapping(path = "", produces = "text/plain")
+    public ResponseEntity<String> status() {
+        final String logPrefix = "status() - ";
+        log.trace("{}Entering method", logPrefix);
+        if (!enabled) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("JFR recording is disabled");
+        }
+        return ResponseEntity.ok(recordingManager.getStatus());
+    }
+
+    @PostMapping(path = "/start", produces = "text/plain")
+    public ResponseEntity<String> start() {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing POST /health/jfr/start", logPrefix);
+        if (!enabled) {
+            log.warn("{}JFR recording is disabled, set monitoring.jfr.enabled to use it", logPrefix);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("JFR recording is disabled");
+        }
+        try {
+            return ResponseEntity.ok(recordingManager.startRecording());
+        }
+        catch (IOException | ParseException ex) {
+            log.error("{}Could not start JFR recording", logPrefix, ex);
+            return ResponseEntity.internalServerError().body("Could not start recording: " + ex.getMessage());
+        }
+    }
+
+    @PostMapping(path = "/stop", produces = "text/plain")
+    public ResponseEntity<String> stop() {
+        final String logPrefix = "stop() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing POST /health/jfr/stop", logPrefix);
+        if (!enabled) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("JFR recording is disabled");
+        }
+        return ResponseEntity.ok(recordingManager.stopRecording());
+    }
+
+    @GetMapping(path = "/download", produces = "application/octet-stream")
+    public ResponseEntity<Resource> download() throws IOException {
+        final String logPrefix = "download() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /health/jfr/download", logPrefix);
+        if (!enabled) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        InputStream recordingData = recordingManager.getRecordingData();
+        if (recordingData == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        String fileName = "platformconnector-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".jfr";
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDisposition(ContentDisposition.attachment().filename(fileName).build());
+        log.debug("{}Streaming recording to browser: {}", logPrefix, headers);
+        return new ResponseEntity<>(new InputStreamResource(recordingData), headers, HttpStatus.OK);
+    }
+}
@@ -19,7 +19,12 @@
  */
 package com.slinkytoybox.gcloud.platformconnector.controller;
 
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginJobManager;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginJobManager.PluginJob;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginJobManager.PluginJobType;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginManagement;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginUpgradeManager;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginUpgradeManager.UpgradeProgress;
 import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,6 +39,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.WebRequest;
 
 /**
@@ -49,6 +55,12 @@ public class PluginController {
     @Autowired
     private PluginManagement pluginManagement;
 
+    @Autowired
+    private PluginUpgradeManager upgradeManager;
+
+    @Autowired
+    private PluginJobManager jobManager;
+
     @GetMapping(path = "/", produces = "text/html")
     public String rootGet(Model model) {
         final String logPrefix = "rootGet() - ";
@@ -88,39 +100,20 @@ public class PluginController {
                 catch (NumberFormatException ex) {
                     log.warn("{}Exception converting '{}' to integer", logPrefix, state);
                 }
-                boolean status = false;
-                try {
-                    switch (stateInt) {
-                        case 0 -> { // unload 
-                            log.info("{}Attempting to Unload plugin {}", logPrefix, pluginId);
-                            status = pluginManagement.unloadPlugin(pluginId);
-                        }
-                        case 1 -> { // start
-                            log.info("{}Attempting to Start plugin {}", logPrefix, pluginId);
-                            status = pluginManagement.startPlugin(pluginId);
-                        }
-                        case 2 -> {// stop
-                            log.info("{}Attempting to Stop plugin {}", logPrefix, pluginId);
-                            status = pluginManagement.stopPlugin(pluginId);
-                        }
-                        default -> {
-                            // not valid
-                            log.error("{}Invalid state request: {}", logPrefix, state);
-                            model.addAttribute("showError", 1);
-                            model.addAttribute("message", "Invalid state request");
-                        }
-                    }
-                }
-                catch (Exception ex) {
-                    log.error("{}Exception while changing state of plugin {}", logPrefix, pluginId, ex);
+                PluginJobType jobType = switch (stateInt) {
+                    case 0 -> PluginJobType.UNLOAD;
+                    case 1 -> PluginJobType.START;
+                    case 2 -> PluginJobType.STOP;
+                    default -> null;
+                };
+                if (jobType == null) {
+                    log.error("{}Invalid state request: {}", logPrefix, state);
                     model.addAttribute("showError", 1);
-                    model.addAttribute("message", ex);
+                    model.addAttribute("message", "Invalid state request");
                 }
-
-                if (!status && !model.containsAttribute("showError")) {
-                    log.warn("{}Changing state failed for plugin {}", logPrefix, pluginId);
-                    model.addAttribute("showError", 1);
-                    model.addAttribute("message", "Unknown error changing state");
+                else {
+                    log.info("{}Queueing {} of plugin {}", logPrefix, jobType, pluginId);
+                    queueJob(model, jobType, pluginId);
                 }
             }
         }
@@ -134,22 +127,8 @@ public class PluginController {
                 model.addAttribute("message", "Filename not speified");
             }
             else {
-                log.info("{}Attempting to load plugin {}", logPrefix, fileName);
-                boolean status = false;
-                try {
-                    status = pluginManagement.loadPlugin(fileName);
-                }
-                catch (Exception ex) {
-                    log.error("{}Exception while loading plugin {}", logPrefix, fileName, ex);
-                    model.addAttribute("showError", 1);
-                    model.addAttribute("message", ex);
-                }
-
-                if (!status && !model.containsAttribute("showError")) {
-                    log.warn("{}Unable to load plugin {}", logPrefix, fileName);
-                    model.addAttribute("showError", 1);
-                    model.addAttribute("message", "Unknown error loading plugin");
-                }
+                log.info("{}Queueing load of plugin {}", logPrefix, fileName);
+                queueJob(model, PluginJobType.LOAD, fileName);
             }
 
         }
@@ -162,6 +141,20 @@ public class PluginController {
         return "plugins";
     }
 
+    private void queueJob(Model model, PluginJobType jobType, String target) {
+        final String logPrefix = "queueJob() - ";
+        try {
+            PluginJob job = jobManager.submit(jobType, target);
+            model.addAttribute("showMessage", 1);
+            model.addAttribute("message", "Job " + job.getJobId() + " queued to " + jobType.name().toLowerCase() + " " + target);
+        }
+        catch (Exception ex) {
+            log.error("{}Exception while queueing {} of {}", logPrefix, jobType, target, ex);
+            model.addAttribute("showError", 1);
+            model.addAttribute("message", ex);
+        }
+    }
+
     private Model rootModel(Model model) {
         final String logPrefix = "rootModel() - ";
         log.trace("{}Entering method", logPrefix);
@@ -169,6 +162,8 @@ public class PluginController {
         List<RegisteredPlugin> rps = new ArrayList<>();
         plugs.values().forEach(rps::add);
         model.addAttribute("plugins", rps);
+        model.addAttribute("jobs", jobManager.getJobs());
+        model.addAttribute("jobsActive", jobManager.hasActiveJobs());
         log.trace("{}Model: {}", logPrefix, model);
         return model;
     }
@@ -188,10 +183,7 @@ public class PluginController {
         final String logPrefix = "restartPlugin() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Processing GET /plugins/start/{}", logPrefix, pluginId);
-        pluginManagement.startPlugin(pluginId);
-        Map<String, RegisteredPlugin> plugs = pluginManagement.getAllPlugins();
-
-        return ResponseEntity.status(HttpStatus.OK).body(plugs);
+        return submitJob(PluginJobType.START, pluginId);
     }
 
     @GetMapping(path = "/stop/{pluginId}", produces = "application/json")
@@ -199,10 +191,7 @@ public class PluginController {
         final String logPrefix = "stopPlugin() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Processing GET /plugins/stop/{}", logPrefix, pluginId);
-        pluginManagement.stopPlugin(pluginId);
-        Map<String, RegisteredPlugin> plugs = pluginManagement.getAllPlugins();
-
-        return ResponseEntity.status(HttpStatus.OK).body(plugs);
+        return submitJob(PluginJobType.STOP, pluginId);
     }
 
     @GetMapping(path = "/unload/{pluginId}", produces = "application/json")
@@ -210,10 +199,7 @@ public class PluginController {
         final String logPrefix = "unloadPlugin() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Processing GET /plugins/unload/{}", logPrefix, pluginId);
-        pluginManagement.unloadPlugin(pluginId);
-        Map<String, RegisteredPlugin> plugs = pluginManagement.getAllPlugins();
-
-        return ResponseEntity.status(HttpStatus.OK).body(plugs);
+        return submitJob(PluginJobType.UNLOAD, pluginId);
     }
 
     @GetMapping(path = "/load/{pluginId}", produces = "application/json")
@@ -221,9 +207,73 @@ public class PluginController {
         final String logPrefix = "loadPlugin() - ";
         log.trace("{}Entering method", logPrefix);
         log.info("{}Processing GET /plugins/load/{}", logPrefix, pluginPath);
-        pluginManagement.loadPlugin(pluginPath);
-        Map<String, RegisteredPlugin> plugs = pluginManagement.getAllPlugins();
+        return submitJob(PluginJobType.LOAD, pluginPath);
+    }
 
-        return ResponseEntity.status(HttpStatus.OK).body(plugs);
+    private ResponseEntity<Object> submitJob(PluginJobType jobType, String target) {
+        final String logPrefix = "submitJob() - ";
+        try {
+            PluginJob job = jobManager.submit(jobType, target);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+        }
+        catch (IllegalStateException ex) {
+            log.warn("{}Job to {} {} refused: {}", logPrefix, jobType, target, ex.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", ex.getMessage()));
+        }
+    }
+
+    @PostMapping(path = "/upgrade/{pluginId}", produces = "application/json")
+    public ResponseEntity<Object> upgradePlugin(@PathVariable("pluginId") String pluginId, @RequestParam("filename") String fileName) {
+        final String logPrefix = "upgradePlugin() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing POST /plugins/upgrade/{} to {}", logPrefix, pluginId, fileName);
+        try {
+            UpgradeProgress progress = upgradeManager.upgrade(pluginId, fileName);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(progress);
+        }
+        catch (IllegalArgumentException | IllegalStateException ex) {
+            log.warn("{}Upgrade of plugin {} refused: {}", logPrefix, pluginId, ex.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", ex.getMessage()));
+        }
+    }
+
+    @GetMapping(path = "/upgrade/status/{upgradeId}", produces = "application/json")
+    public ResponseEntity<Object> upgradeStatus(@PathVariable("upgradeId") String upgradeId) {
+        final String logPrefix = "upgradeStatus() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /plugins/upgrade/status/{}", logPrefix, upgradeId);
+        UpgradeProgress progress = upgradeManager.getUpgrade(upgradeId);
+        if (progress == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(progress);
+    }
+
+    @GetMapping(path = "/upgrade/status", produces = "application/json")
+    public ResponseEntity<Object> upgradeStatusAll() {
+        final String logPrefix = "upgradeStatusAll() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /plugins/upgrade/status", logPrefix);
+        return ResponseEntity.status(HttpStatus.OK).body(upgradeManager.getUpgrades());
+    }
+
+    @GetMapping(path = "/jobs", produces = "application/json")
+    public ResponseEntity<Object> jobs() {
+        final String logPrefix = "jobs() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /plugins/jobs", logPrefix);
+        return ResponseEntity.status(HttpStatus.OK).body(jobManager.getJobs());
+    }
+
+    @GetMapping(path = "/jobs/{jobId}", produces = "application/json")
+    public ResponseEntity<Object> job(@PathVariable("jobId") Long jobId) {
+        final String logPrefix = "job() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /plugins/jobs/{}", logPrefix, jobId);
+        PluginJob job = jobManager.getJob(jobId);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(job);
     }
 }
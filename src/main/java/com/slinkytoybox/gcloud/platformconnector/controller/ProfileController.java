@@ -0,0 +1,54 @@
+/*
+ *   platformconnector - ProfileController.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.controller;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginStackSampler;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@RestController
+@Lazy
+@RequestMapping("/health/profile")
+public class ProfileController {
+
+    @Autowired
+    private PluginStackSampler stackSampler;
+
+    @GetMapping(path = "/{pluginId}", produces = "text/plain")
+    public ResponseEntity<String> getProfile(@PathVariable String pluginId, @RequestParam(defaultValue = "5") Integer minutes, @RequestParam(required = false) PluginOperation operation) {
+        final String logPrefix = "getProfile() - ";
+        log.trace("{}Entering method", logPrefix);
+        log.info("{}Processing GET /health/profile/{} for {} minutes, operation {}", logPrefix, pluginId, minutes, operation);
+        return ResponseEntity.ok(stackSampler.getCollapsedStacks(pluginId, minutes, operation));
+    }
+}
@@ -25,6 +25,7 @@ import java.io.IOException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -40,6 +41,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
  * @author Michael Junek (michael@juneks.com.au)
  */
 @Controller
+@Lazy
 @Slf4j
 @RequestMapping("/source")
 public class SourceController {
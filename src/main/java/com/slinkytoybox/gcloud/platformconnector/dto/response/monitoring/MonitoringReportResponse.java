@@ -36,5 +36,6 @@ public class MonitoringReportResponse implements Serializable{
     private HealthStatus applicationState;
     private Map <String, String> loadedPlugins;
     private Map <String, PluginHealthResponse> pluginHealth;
+    private Map <String, String> clusterState;
     
 }
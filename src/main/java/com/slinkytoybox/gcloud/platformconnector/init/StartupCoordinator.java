@@ -0,0 +1,192 @@
+/*
+ *   platformconnector - StartupCoordinator.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.init;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs independent startup work, such as the Genesys Cloud authentication and the secure key read, on background
+ * threads while the rest of the context carries on. Tasks marked critical are waited for before the web server
+ * starts, so the node never takes requests without them. Task timings and time-to-ready are kept for
+ * /health/startup; per-bean timings are at /metrics/startup.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class StartupCoordinator implements SmartLifecycle {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${startup.critical-timeout:120000}")
+    private Long criticalTimeout;
+
+    @Value("${info.build.version:unknown}")
+    private String buildVersion;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "startup-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<CompletableFuture<Void>> criticalTasks = new CopyOnWriteArrayList<>();
+    private final List<StartupTask> tasks = new CopyOnWriteArrayList<>();
+    private volatile long timeToReady = -1;
+    private volatile boolean running = false;
+
+    public CompletableFuture<Void> submit(String name, boolean critical, Runnable task) {
+        final String logPrefix = "submit() - ";
+        log.debug("{}Starting {} in the background", logPrefix, name);
+        long startedAt = getUptime();
+        CompletableFuture<Void> future = CompletableFuture.runAsync(task, executor)
+                .whenComplete((result, ex) -> {
+                    recordTask(name, critical, startedAt, getUptime() - startedAt, ex);
+                    if (ex != null) {
+                        log.error("{}Startup task {} failed", logPrefix, name, ex);
+                    }
+                });
+        if (critical) {
+            criticalTasks.add(future);
+        }
+        return future;
+    }
+
+    public void recordTask(String name, boolean critical, long startedAt, long durationMillis, Throwable error) {
+        tasks.add(new StartupTask()
+                .setName(name)
+                .setCritical(critical)
+                .setStartedAt(startedAt)
+                .setDurationMillis(durationMillis)
+                .setThread(Thread.currentThread().getName())
+                .setSuccess(error == null)
+                .setError(error == null ? null : String.valueOf(error.getMessage())));
+    }
+
+    public long getUptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    @Override
+    public void start() {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Waiting for {} critical startup tasks before accepting requests", logPrefix, criticalTasks.size());
+        long startTime = System.currentTimeMillis();
+        try {
+            CompletableFuture.allOf(criticalTasks.toArray(new CompletableFuture[0])).get(criticalTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for startup tasks", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("A critical startup task failed", ex.getCause());
+        }
+        catch (TimeoutException ex) {
+            throw new IllegalStateException("Critical startup tasks did not finish within " + criticalTimeout + "ms", ex);
+        }
+        log.info("{}Critical startup tasks finished, waited {}ms", logPrefix, System.currentTimeMillis() - startTime);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Before the embedded web server, which starts in one of the last phases
+        return 0;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void applicationReady() {
+        final String logPrefix = "applicationReady() - ";
+        timeToReady = getUptime();
+        Gauge.builder("platformconnector.startup.time-to-ready", this, c -> c.timeToReady / 1000.0)
+                .description("Seconds from JVM start until the application was ready to take requests")
+                .tag("version", buildVersion)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        log.info("{}Version {} ready in {}ms", logPrefix, buildVersion, timeToReady);
+    }
+
+    public Map<String, Object> getStartupReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", buildVersion);
+        report.put("timeToReadyMillis", timeToReady);
+        List<StartupTask> sorted = new ArrayList<>(tasks);
+        sorted.sort(Comparator.comparingLong(StartupTask::getStartedAt));
+        report.put("tasks", sorted);
+        return report;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class StartupTask {
+
+        private String name;
+        private boolean critical;
+        private long startedAt;
+        private long durationMillis;
+        private String thread;
+        private boolean success;
+        private String error;
+    }
+}
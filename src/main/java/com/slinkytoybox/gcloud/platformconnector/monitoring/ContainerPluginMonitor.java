@@ -0,0 +1,44 @@
+/*
+ *   platformconnector - ContainerPluginMonitor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.Map;
+
+/**
+ * Source of container-side metrics about a plugin, merged by MonitoringLogic into the health report and the Zabbix
+ * metric discovery. The same metric names must be returned on every call for a plugin so discovery stays stable. A
+ * monitor can also degrade the health the plugin reports about itself.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public interface ContainerPluginMonitor {
+
+    Map<String, Number> getPluginMetrics(RegisteredPlugin plugin);
+
+    /**
+     * @return a WARNING or FAILED status if the container has seen a problem with the plugin, otherwise null
+     */
+    default HealthStatus getHealthAssessment(RegisteredPlugin plugin) {
+        return null;
+    }
+
+}
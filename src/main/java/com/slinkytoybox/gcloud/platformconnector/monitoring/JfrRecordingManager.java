@@ -0,0 +1,130 @@
+/*
+ *   platformconnector - JfrRecordingManager.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+/**
+ * Controls a single, bounded, on-demand JFR recording of this JVM.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Lazy
+@Slf4j
+public class JfrRecordingManager {
+
+    private static final String RECORDING_NAME = "PlatformConnector";
+    // These carry the JVM arguments, system properties and environment, which include secure.key and database
+    // credentials, so they never go into a recording that can be downloaded
+    private static final String[] SENSITIVE_EVENTS = {"jdk.InitialSystemProperty", "jdk.InitialEnvironmentVariable", "jdk.JVMInformation", "jdk.SystemProcess"};
+
+    @Value("${monitoring.jfr.settings:profile}")
+    private String jfrSettings;
+
+    @Value("${monitoring.jfr.max-age:900000}")
+    private Long maxAge;
+
+    @Value("${monitoring.jfr.max-size:104857600}")
+    private Long maxSize;
+
+    @Value("${monitoring.jfr.max-duration:3600000}")
+    private Long maxDuration;
+
+    private Recording recording = null;
+
+    public synchronized String startRecording() throws IOException, ParseException {
+        final String logPrefix = "startRecording() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            log.warn("{}Recording is already running", logPrefix);
+            return getStatus();
+        }
+        closeRecording();
+        log.info("{}Starting JFR recording with settings '{}', max age {}ms, max size {} bytes", logPrefix, jfrSettings, maxAge, maxSize);
+        recording = new Recording(Configuration.getConfiguration(jfrSettings));
+        for (String event : SENSITIVE_EVENTS) {
+            recording.disable(event);
+        }
+        recording.setName(RECORDING_NAME);
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofMillis(maxAge));
+        recording.setMaxSize(maxSize);
+        recording.setDuration(Duration.ofMillis(maxDuration));
+        recording.start();
+        return getStatus();
+    }
+
+    public synchronized String stopRecording() {
+        final String logPrefix = "stopRecording() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            log.info("{}Stopping JFR recording", logPrefix);
+            recording.stop();
+        }
+        else {
+            log.warn("{}No recording is running", logPrefix);
+        }
+        return getStatus();
+    }
+
+    /**
+     * Dumps the current recording to a temporary file. The file is deleted when the returned stream is closed.
+     */
+    public synchronized InputStream getRecordingData() throws IOException {
+        final String logPrefix = "getRecordingData() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (recording == null || (recording.getState() != RecordingState.RUNNING && recording.getState() != RecordingState.STOPPED)) {
+            log.warn("{}No recording data available", logPrefix);
+            return null;
+        }
+        Path dumpFile = Files.createTempFile("platformconnector-", ".jfr");
+        recording.dump(dumpFile);
+        log.info("{}Dumped recording to {} ({} bytes)", logPrefix, dumpFile, Files.size(dumpFile));
+        return Files.newInputStream(dumpFile, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public synchronized String getStatus() {
+        if (recording == null) {
+            return "NOT_STARTED";
+        }
+        return recording.getState().name() + " since " + recording.getStartTime() + ", " + recording.getSize() + " bytes";
+    }
+
+    private void closeRecording() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
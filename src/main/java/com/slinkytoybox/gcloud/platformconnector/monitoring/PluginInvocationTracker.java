@@ -0,0 +1,182 @@
+/*
+ *   platformconnector - PluginInvocationTracker.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of plugin invocations that are currently executing, with the thread running them and when they started.
+ * It also holds a per-plugin admission gate: once a plugin's admission is closed, new invocations are refused while
+ * the ones already running are counted down, so the plugin can be stopped without cutting them off.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginInvocationTracker {
+
+    private final AtomicLong invocationSequence = new AtomicLong(0);
+    private final Map<Long, InFlightCall> inFlightCalls = new ConcurrentHashMap<>();
+    private final Map<String, AdmissionGate> gates = new ConcurrentHashMap<>();
+
+    public InFlightCall begin(String pluginId, PluginOperation operation, String requestId, PlatformConnectorPlugin plugin) {
+        AdmissionGate gate = gates.computeIfAbsent(pluginId, k -> new AdmissionGate());
+        // Count the call before checking the gate, so a drain that closes the gate either sees this call or refuses it
+        gate.inFlight.incrementAndGet();
+        if (!gate.admitting) {
+            gate.release();
+            throw new IllegalStateException("Plugin " + pluginId + " is stopping and not accepting new requests");
+        }
+        InFlightCall call = new InFlightCall(invocationSequence.incrementAndGet(), pluginId, operation, requestId, plugin, Thread.currentThread());
+        inFlightCalls.put(call.getInvocationId(), call);
+        return call;
+    }
+
+    public void end(InFlightCall call) {
+        inFlightCalls.remove(call.getInvocationId());
+        AdmissionGate gate = gates.get(call.getPluginId());
+        if (gate != null) {
+            gate.release();
+        }
+    }
+
+    public boolean isAdmitting(String pluginId) {
+        AdmissionGate gate = gates.get(pluginId);
+        return gate == null || gate.admitting;
+    }
+
+    public void closeAdmission(String pluginId) {
+        final String logPrefix = "closeAdmission() - ";
+        gates.computeIfAbsent(pluginId, k -> new AdmissionGate()).admitting = false;
+        log.info("{}Plugin {} no longer accepting new requests, {} in flight", logPrefix, pluginId, getInFlightCount(pluginId));
+    }
+
+    public void openAdmission(String pluginId) {
+        final String logPrefix = "openAdmission() - ";
+        AdmissionGate gate = gates.get(pluginId);
+        if (gate != null && !gate.admitting) {
+            gate.admitting = true;
+            log.info("{}Plugin {} accepting requests again", logPrefix, pluginId);
+        }
+    }
+
+    public int getInFlightCount(String pluginId) {
+        AdmissionGate gate = gates.get(pluginId);
+        return (gate == null ? 0 : gate.inFlight.get());
+    }
+
+    /**
+     * Waits for the invocations running in a plugin to finish. Only meaningful once admission has been closed,
+     * otherwise new calls can keep arriving.
+     *
+     * @param pluginId the plugin to wait for
+     * @param timeoutMillis how long to wait
+     * @return true if nothing is running in the plugin any more, false if the wait timed out
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitDrained(String pluginId, long timeoutMillis) throws InterruptedException {
+        AdmissionGate gate = gates.get(pluginId);
+        if (gate == null) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (gate) {
+            long remaining = timeoutMillis;
+            while (gate.inFlight.get() > 0 && remaining > 0) {
+                gate.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return gate.inFlight.get() == 0;
+        }
+    }
+
+    public boolean isInFlight(long invocationId) {
+        return inFlightCalls.containsKey(invocationId);
+    }
+
+    public List<InFlightCall> getInFlightCalls() {
+        return new ArrayList<>(inFlightCalls.values());
+    }
+
+    /**
+     * Counts the calls running in one loaded version of a plugin. pf4j can hand out a new extension instance on each
+     * lookup, so calls are matched on the class loader of the version rather than on the instance.
+     *
+     * @param versionLoader the class loader of the loaded version
+     * @return the number of calls running in it
+     */
+    public int getInFlightCount(ClassLoader versionLoader) {
+        return (int) inFlightCalls.values().stream()
+                .filter(call -> call.getPlugin() != null && call.getPlugin().getClass().getClassLoader() == versionLoader)
+                .count();
+    }
+
+    private static class AdmissionGate {
+
+        private volatile boolean admitting = true;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private void release() {
+            if (inFlight.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    @Getter
+    public static class InFlightCall {
+
+        private final long invocationId;
+        private final String pluginId;
+        private final PluginOperation operation;
+        private final String requestId;
+        private final PlatformConnectorPlugin plugin;
+        private final Thread thread;
+        private final Instant startTime = Instant.now();
+        private final long startNanos = System.nanoTime();
+
+        private InFlightCall(long invocationId, String pluginId, PluginOperation operation, String requestId, PlatformConnectorPlugin plugin, Thread thread) {
+            this.invocationId = invocationId;
+            this.pluginId = pluginId;
+            this.operation = operation;
+            this.requestId = requestId;
+            this.plugin = plugin;
+            this.thread = thread;
+        }
+
+        public long getAgeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
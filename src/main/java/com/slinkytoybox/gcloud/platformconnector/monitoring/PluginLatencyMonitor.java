@@ -0,0 +1,122 @@
+/*
+ *   platformconnector - PluginLatencyMonitor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the latency of every plugin invocation into an HdrHistogram recorder per plugin and operation. Recording is
+ * wait-free, the recorders are swapped out every interval and the percentiles of the last complete interval are
+ * reported.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginLatencyMonitor implements ContainerPluginMonitor {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final Map<String, OperationLatency> latencies = new ConcurrentHashMap<>();
+
+    public void recordInvocation(String pluginId, PluginOperation operation, long durationNanos, boolean failed) {
+        latencies.computeIfAbsent(getKey(pluginId, operation), k -> new OperationLatency())
+                .record(durationNanos, failed);
+    }
+
+    @Scheduled(fixedDelayString = "${monitoring.latency.interval:60000}", initialDelayString = "${monitoring.latency.interval:60000}")
+    public void rotateIntervals() {
+        final String logPrefix = "rotateIntervals() - ";
+        log.trace("{}Entering Method", logPrefix);
+        latencies.forEach((key, latency) -> {
+            latency.rotate();
+            log.trace("{}{} -> requests={}, errors={}, p99={}us", logPrefix, key, latency.intervalRequests, latency.intervalErrors, latency.intervalHistogram.getValueAtPercentile(99.0));
+        });
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        if (plugin.getPlugin() == null || !plugin.getState().equals("STARTED")) {
+            return metrics;
+        }
+        for (PluginOperation operation : plugin.getPlugin().getValidOperations()) {
+            OperationLatency latency = latencies.get(getKey(plugin.getId(), operation));
+            Histogram histogram = (latency == null ? null : latency.intervalHistogram);
+            String prefix = "container." + operation.name().toLowerCase() + ".";
+            metrics.put(prefix + "latency.p50", getPercentileMillis(histogram, 50.0));
+            metrics.put(prefix + "latency.p90", getPercentileMillis(histogram, 90.0));
+            metrics.put(prefix + "latency.p99", getPercentileMillis(histogram, 99.0));
+            metrics.put(prefix + "latency.max", getPercentileMillis(histogram, 100.0));
+            metrics.put(prefix + "requests", (latency == null ? 0L : latency.intervalRequests));
+            metrics.put(prefix + "errors", (latency == null ? 0L : latency.intervalErrors));
+        }
+        return metrics;
+    }
+
+    private Double getPercentileMillis(Histogram histogram, double percentile) {
+        if (histogram == null || histogram.getTotalCount() == 0) {
+            return 0.0;
+        }
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private String getKey(String pluginId, PluginOperation operation) {
+        return pluginId + "/" + operation.name();
+    }
+
+    private static class OperationLatency {
+
+        private final Recorder recorder = new Recorder(1, HIGHEST_TRACKABLE_MICROS, 3);
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private volatile Histogram intervalHistogram = null;
+        private volatile long intervalRequests = 0;
+        private volatile long intervalErrors = 0;
+
+        private void record(long durationNanos, boolean failed) {
+            long micros = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMicros(durationNanos), HIGHEST_TRACKABLE_MICROS));
+            recorder.recordValue(micros);
+            requests.increment();
+            if (failed) {
+                errors.increment();
+            }
+        }
+
+        private void rotate() {
+            intervalHistogram = recorder.getIntervalHistogram();
+            intervalRequests = requests.sumThenReset();
+            intervalErrors = errors.sumThenReset();
+        }
+    }
+}
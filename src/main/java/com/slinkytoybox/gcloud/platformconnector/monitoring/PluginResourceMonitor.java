@@ -0,0 +1,133 @@
+/*
+ *   platformconnector - PluginResourceMonitor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import jakarta.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Accounts the CPU time and heap allocation of the request thread while it is inside a plugin, so that plugins sharing
+ * the JVM can be charged back individually.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginResourceMonitor implements ContainerPluginMonitor {
+
+    private final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final Map<String, ResourceUsage> usages = new ConcurrentHashMap<>();
+
+    private boolean cpuTimeEnabled = false;
+    private boolean allocationEnabled = false;
+
+    @PostConstruct
+    private void init() {
+        final String logPrefix = "init() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            if (!threadBean.isThreadCpuTimeEnabled()) {
+                threadBean.setThreadCpuTimeEnabled(true);
+            }
+            cpuTimeEnabled = true;
+        }
+        if (threadBean.isThreadAllocatedMemorySupported()) {
+            if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+                threadBean.setThreadAllocatedMemoryEnabled(true);
+            }
+            allocationEnabled = true;
+        }
+        log.info("{}Thread CPU time accounting: {}, allocation accounting: {}", logPrefix, cpuTimeEnabled, allocationEnabled);
+    }
+
+    public Sample startSample() {
+        return new Sample(getCpuTime(), getAllocatedBytes());
+    }
+
+    public void recordInvocation(String pluginId, PluginOperation operation, Sample start) {
+        long cpuNanos = Math.max(0, getCpuTime() - start.cpuNanos);
+        long allocatedBytes = Math.max(0, getAllocatedBytes() - start.allocatedBytes);
+        ResourceUsage usage = usages.computeIfAbsent(pluginId + "/" + operation.name(), k -> new ResourceUsage());
+        usage.invocations.increment();
+        usage.cpuNanos.add(cpuNanos);
+        usage.allocatedBytes.add(allocatedBytes);
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        if (plugin.getPlugin() == null || !plugin.getState().equals("STARTED")) {
+            return metrics;
+        }
+        long totalCpuNanos = 0;
+        long totalAllocatedBytes = 0;
+        for (PluginOperation operation : plugin.getPlugin().getValidOperations()) {
+            ResourceUsage usage = usages.get(plugin.getId() + "/" + operation.name());
+            long invocations = (usage == null ? 0 : usage.invocations.sum());
+            long cpuNanos = (usage == null ? 0 : usage.cpuNanos.sum());
+            long allocatedBytes = (usage == null ? 0 : usage.allocatedBytes.sum());
+            String prefix = "container." + operation.name().toLowerCase() + ".";
+            metrics.put(prefix + "cpu.total-ms", TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+            metrics.put(prefix + "cpu.per-call-ms", (invocations == 0 ? 0.0 : cpuNanos / 1000000.0 / invocations));
+            metrics.put(prefix + "allocated.total-bytes", allocatedBytes);
+            metrics.put(prefix + "allocated.per-call-bytes", (invocations == 0 ? 0L : allocatedBytes / invocations));
+            totalCpuNanos += cpuNanos;
+            totalAllocatedBytes += allocatedBytes;
+        }
+        metrics.put("container.cpu.total-ms", TimeUnit.NANOSECONDS.toMillis(totalCpuNanos));
+        metrics.put("container.allocated.total-bytes", totalAllocatedBytes);
+        return metrics;
+    }
+
+    private long getCpuTime() {
+        return (cpuTimeEnabled ? threadBean.getCurrentThreadCpuTime() : 0);
+    }
+
+    private long getAllocatedBytes() {
+        return (allocationEnabled ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0);
+    }
+
+    public static class Sample {
+
+        private final long cpuNanos;
+        private final long allocatedBytes;
+
+        private Sample(long cpuNanos, long allocatedBytes) {
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private static class ResourceUsage {
+
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *   platformconnector - PluginSloMonitor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.connection.ConfigOptionsChangedEvent;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks availability and latency SLOs per plugin over one minute buckets, and calculates multi-window error budget
+ * burn rates (1h/5m for fast burn, 6h/30m for slow burn). A fast burn on either SLO degrades the plugin to WARNING.
+ * <p>
+ * Targets are read from monitoring.slo.&lt;pluginId&gt;.* falling back to monitoring.slo.default.*, for example
+ * monitoring.slo.myplugin.read.latency-threshold=300 and monitoring.slo.myplugin.latency-target=0.99
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginSloMonitor implements ContainerPluginMonitor {
+
+    private static final int BUCKET_COUNT = 360;
+
+    @Autowired
+    private Environment env;
+
+    private final Map<String, SloWindow> windows = new ConcurrentHashMap<>();
+    private final Map<String, Long> latencyThresholds = new ConcurrentHashMap<>();
+    // Plugins currently in fast burn, so the warning is only logged when a plugin goes into or out of it
+    private final Set<String> fastBurning = ConcurrentHashMap.newKeySet();
+
+    public void recordInvocation(String pluginId, PluginOperation operation, long durationNanos, boolean failed) {
+        long thresholdMillis = latencyThresholds.computeIfAbsent(pluginId + "/" + operation.name(),
+                k -> Long.valueOf(getSetting(pluginId, operation.name().toLowerCase() + ".latency-threshold", getSetting(pluginId, "latency-threshold", "1000"))));
+        boolean slow = TimeUnit.NANOSECONDS.toMillis(durationNanos) > thresholdMillis;
+        windows.computeIfAbsent(pluginId, k -> new SloWindow())
+                .record(getCurrentMinute(), slow, failed);
+    }
+
+    public void clearTargets() {
+        final String logPrefix = "clearTargets() - ";
+        log.debug("{}Clearing cached SLO latency thresholds", logPrefix);
+        latencyThresholds.clear();
+    }
+
+    @EventListener
+    public void onConfigOptionsChanged(ConfigOptionsChangedEvent event) {
+        if (event.hasChangedPrefix("monitoring.slo.")) {
+            clearTargets();
+        }
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        if (plugin.getPlugin() == null || !plugin.getState().equals("STARTED")) {
+            return metrics;
+        }
+        BurnRates burn = getBurnRates(plugin.getId());
+        metrics.put("container.slo.availability.burn.5m", burn.availability5m);
+        metrics.put("container.slo.availability.burn.30m", burn.availability30m);
+        metrics.put("container.slo.availability.burn.1h", burn.availability1h);
+        metrics.put("container.slo.availability.burn.6h", burn.availability6h);
+        metrics.put("container.slo.latency.burn.5m", burn.latency5m);
+        metrics.put("container.slo.latency.burn.30m", burn.latency30m);
+        metrics.put("container.slo.latency.burn.1h", burn.latency1h);
+        metrics.put("container.slo.latency.burn.6h", burn.latency6h);
+        metrics.put("container.slo.fast-burn", (isFastBurn(burn) ? 1L : 0L));
+        metrics.put("container.slo.slow-burn", (isSlowBurn(burn) ? 1L : 0L));
+        return metrics;
+    }
+
+    @Override
+    public HealthStatus getHealthAssessment(RegisteredPlugin plugin) {
+        final String logPrefix = "getHealthAssessment() - ";
+        BurnRates burn = getBurnRates(plugin.getId());
+        if (isFastBurn(burn)) {
+            if (fastBurning.add(plugin.getId())) {
+                log.warn("{}Plugin {} is burning its error budget too quickly: {}", logPrefix, plugin.getId(), burn);
+            }
+            return new HealthStatus()
+                    .setHealthState(HealthState.WARNING)
+                    .setHealthComment(String.format("SLO fast burn - availability %.1fx, latency %.1fx over the last hour", burn.availability1h, burn.latency1h));
+        }
+        if (fastBurning.remove(plugin.getId())) {
+            log.info("{}Plugin {} is no longer burning its error budget too quickly", logPrefix, plugin.getId());
+        }
+        return null;
+    }
+
+    private BurnRates getBurnRates(String pluginId) {
+        SloWindow window = windows.get(pluginId);
+        BurnRates burn = new BurnRates();
+        if (window == null) {
+            return burn;
+        }
+        long minRequests = Long.parseLong(getSetting(pluginId, "min-requests", "10"));
+        double availabilityBudget = 1.0 - Double.parseDouble(getSetting(pluginId, "availability-target", "0.999"));
+        double latencyBudget = 1.0 - Double.parseDouble(getSetting(pluginId, "latency-target", "0.99"));
+        long now = getCurrentMinute();
+
+        Totals t5m = window.sum(now, 5);
+        Totals t30m = window.sum(now, 30);
+        Totals t1h = window.sum(now, 60);
+        Totals t6h = window.sum(now, BUCKET_COUNT);
+        burn.availability5m = t5m.getBurnRate(t5m.failed, availabilityBudget, minRequests);
+        burn.availability30m = t30m.getBurnRate(t30m.failed, availabilityBudget, minRequests);
+        burn.availability1h = t1h.getBurnRate(t1h.failed, availabilityBudget, minRequests);
+        burn.availability6h = t6h.getBurnRate(t6h.failed, availabilityBudget, minRequests);
+        burn.latency5m = t5m.getBurnRate(t5m.slow, latencyBudget, minRequests);
+        burn.latency30m = t30m.getBurnRate(t30m.slow, latencyBudget, minRequests);
+        burn.latency1h = t1h.getBurnRate(t1h.slow, latencyBudget, minRequests);
+        burn.latency6h = t6h.getBurnRate(t6h.slow, latencyBudget, minRequests);
+        return burn;
+    }
+
+    private boolean isFastBurn(BurnRates burn) {
+        double threshold = Double.parseDouble(env.getProperty("monitoring.slo.fast-burn-threshold", "14.4"));
+        return (burn.availability1h > threshold && burn.availability5m > threshold)
+                || (burn.latency1h > threshold && burn.latency5m > threshold);
+    }
+
+    private boolean isSlowBurn(BurnRates burn) {
+        double threshold = Double.parseDouble(env.getProperty("monitoring.slo.slow-burn-threshold", "6"));
+        return (burn.availability6h > threshold && burn.availability30m > threshold)
+                || (burn.latency6h > threshold && burn.latency30m > threshold);
+    }
+
+    private String getSetting(String pluginId, String setting, String defaultValue) {
+        return env.getProperty("monitoring.slo." + pluginId + "." + setting, env.getProperty("monitoring.slo.default." + setting, defaultValue));
+    }
+
+    private long getCurrentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    private static class SloWindow {
+
+        private final Bucket[] buckets = new Bucket[BUCKET_COUNT];
+
+        private SloWindow() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        private void record(long minute, boolean slow, boolean failed) {
+            Bucket bucket = buckets[(int) (minute % BUCKET_COUNT)];
+            if (bucket.minute != minute) {
+                synchronized (bucket) {
+                    if (bucket.minute != minute) {
+                        bucket.total.reset();
+                        bucket.slow.reset();
+                        bucket.failed.reset();
+                        bucket.minute = minute;
+                    }
+                }
+            }
+            bucket.total.increment();
+            if (slow) {
+                bucket.slow.increment();
+            }
+            if (failed) {
+                bucket.failed.increment();
+            }
+        }
+
+        private Totals sum(long currentMinute, int minutes) {
+            Totals totals = new Totals();
+            for (long minute = currentMinute - minutes + 1; minute <= currentMinute; minute++) {
+                Bucket bucket = buckets[(int) (minute % BUCKET_COUNT)];
+                if (bucket.minute == minute) {
+                    totals.total += bucket.total.sum();
+                    totals.slow += bucket.slow.sum();
+                    totals.failed += bucket.failed.sum();
+                }
+            }
+            return totals;
+        }
+    }
+
+    private static class Bucket {
+
+        private volatile long minute = -1;
+        private final LongAdder total = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
+
+    private static class Totals {
+
+        private long total = 0;
+        private long slow = 0;
+        private long failed = 0;
+
+        private double getBurnRate(long bad, double errorBudget, long minRequests) {
+            if (total == 0 || total < minRequests || errorBudget <= 0) {
+                return 0.0;
+            }
+            return ((double) bad / total) / errorBudget;
+        }
+    }
+
+    @ToString
+    private static class BurnRates {
+
+        private double availability5m = 0.0;
+        private double availability30m = 0.0;
+        private double availability1h = 0.0;
+        private double availability6h = 0.0;
+        private double latency5m = 0.0;
+        private double latency30m = 0.0;
+        private double latency1h = 0.0;
+        private double latency6h = 0.0;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *   platformconnector - PluginStackSampler.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker.InFlightCall;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Low overhead stack sampler for plugin calls. Only threads that are currently inside a plugin invocation are sampled,
+ * and each sample is tagged with the plugin and operation being executed and folded into per-minute stack counts that
+ * can be rendered with any collapsed-stack flame graph tool.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginStackSampler {
+
+    private static final long MINUTE_MILLIS = 60_000L;
+    private static final String ENTRY_CLASS = "com.slinkytoybox.gcloud.platformconnector.businesslogic.PluginLogic";
+    private static final String ENTRY_METHOD = "invokePlugin";
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Value("${monitoring.profiler.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${monitoring.profiler.interval:100}")
+    private Long sampleInterval;
+
+    @Value("${monitoring.profiler.retention-minutes:60}")
+    private Integer retentionMinutes;
+
+    @Value("${monitoring.profiler.max-depth:128}")
+    private Integer maxDepth;
+
+    // minute -> pluginId -> folded stack -> count
+    private final ConcurrentSkipListMap<Long, Map<String, Map<String, LongAdder>>> samples = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService executor = null;
+
+    @PostConstruct
+    public void startSampler() {
+        final String logPrefix = "startSampler() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!enabled) {
+            log.info("{}Plugin stack sampling is disabled", logPrefix);
+            return;
+        }
+        // Own thread so the sampling rate is not held up by the shared scheduler
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "plugin-stack-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(this::sample, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+        log.info("{}Sampling plugin call stacks every {}ms, keeping {} minutes", logPrefix, sampleInterval, retentionMinutes);
+    }
+
+    @PreDestroy
+    public void stopSampler() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void sample() {
+        final String logPrefix = "sample() - ";
+        try {
+            long minute = System.currentTimeMillis() / MINUTE_MILLIS;
+            for (InFlightCall call : invocationTracker.getInFlightCalls()) {
+                StackTraceElement[] stack = call.getThread().getStackTrace();
+                if (!invocationTracker.isInFlight(call.getInvocationId())) {
+                    // The call finished while we were sampling, so the stack belongs to something else
+                    continue;
+                }
+                String folded = foldStack(call.getOperation(), stack);
+                if (folded != null) {
+                    samples.computeIfAbsent(minute, k -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(call.getPluginId(), k -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(folded, k -> new LongAdder())
+                            .increment();
+                }
+            }
+            samples.headMap(minute - retentionMinutes).clear();
+        }
+        catch (Exception ex) {
+            log.error("{}Failed to sample plugin stacks", logPrefix, ex);
+        }
+    }
+
+    private String foldStack(PluginOperation operation, StackTraceElement[] stack) {
+        // Only keep the frames above the plugin entry point, outermost first
+        int entry = -1;
+        for (int i = 0; i < stack.length; i++) {
+            if (ENTRY_CLASS.equals(stack[i].getClassName()) && ENTRY_METHOD.equals(stack[i].getMethodName())) {
+                entry = i;
+                break;
+            }
+        }
+        if (entry <= 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(operation.name());
+        // Deep stacks are cut at the leaf end, so every stack still starts from the entry point and they merge correctly
+        int leaf = Math.max(entry - maxDepth, 0);
+        for (int i = entry - 1; i >= leaf; i--) {
+            sb.append(';').append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+        }
+        return sb.toString();
+    }
+
+    public String getCollapsedStacks(String pluginId, int minutes, PluginOperation operation) {
+        final String logPrefix = "getCollapsedStacks() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long fromMinute = System.currentTimeMillis() / MINUTE_MILLIS - Math.max(minutes, 1) + 1;
+        Map<String, Long> totals = new TreeMap<>();
+        samples.tailMap(fromMinute).values().forEach(pluginSamples -> {
+            Map<String, LongAdder> stacks = pluginSamples.get(pluginId);
+            if (stacks != null) {
+                stacks.forEach((folded, count) -> {
+                    if (operation == null || folded.startsWith(operation.name() + ";")) {
+                        totals.merge(folded, count.sum(), Long::sum);
+                    }
+                });
+            }
+        });
+        log.debug("{}Returning {} distinct stacks for plugin {} over {} minutes", logPrefix, totals.size(), pluginId, minutes);
+        StringBuilder sb = new StringBuilder();
+        totals.forEach((folded, count) -> sb.append(pluginId).append(';').append(folded).append(' ').append(count).append('\n'));
+        return sb.toString();
+    }
+}
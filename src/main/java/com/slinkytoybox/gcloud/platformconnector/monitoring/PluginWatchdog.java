@@ -0,0 +1,175 @@
+/*
+ *   platformconnector - PluginWatchdog.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker.InFlightCall;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.PluginManagement;
+import com.slinkytoybox.gcloud.platformconnector.pluginmanagement.RegisteredPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically inspects in-flight plugin invocations. Calls older than the stuck threshold have their stack captured and
+ * logged, and the plugin's reported health is degraded to WARNING (or FAILED past the fail threshold). New requests are
+ * not sent to a FAILED plugin until the stuck calls complete.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginWatchdog implements ContainerPluginMonitor {
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Autowired
+    private PluginManagement pluginManagement;
+
+    @Value("${monitoring.watchdog.stuck-threshold:30000}")
+    private Long stuckThreshold;
+
+    @Value("${monitoring.watchdog.fail-threshold:120000}")
+    private Long failThreshold;
+
+    @Value("${monitoring.watchdog.fail-count:5}")
+    private Integer failCount;
+
+    private final Map<String, LongAdder> stuckTotals = new ConcurrentHashMap<>();
+    private final Map<String, PluginCalls> currentCalls = new ConcurrentHashMap<>();
+    private final Map<String, HealthStatus> degradedPlugins = new ConcurrentHashMap<>();
+    private final Map<Long, String> stuckStacks = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${monitoring.watchdog.interval:5000}", initialDelayString = "${monitoring.watchdog.interval:5000}")
+    public void checkInFlightCalls() {
+        final String logPrefix = "checkInFlightCalls() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<InFlightCall> inFlight = invocationTracker.getInFlightCalls();
+        Map<String, PluginCalls> callsByPlugin = new HashMap<>();
+        Map<Long, String> stillStuck = new HashMap<>();
+
+        for (InFlightCall call : inFlight) {
+            PluginCalls pc = callsByPlugin.computeIfAbsent(call.getPluginId(), k -> new PluginCalls());
+            long age = call.getAgeMillis();
+            pc.inFlight++;
+            pc.oldestMillis = Math.max(pc.oldestMillis, age);
+            if (age >= stuckThreshold) {
+                pc.stuck++;
+                String stack = stuckStacks.get(call.getInvocationId());
+                if (stack == null) {
+                    stack = formatStack(call);
+                    stuckTotals.computeIfAbsent(call.getPluginId(), k -> new LongAdder()).increment();
+                    log.warn("{}Plugin {} {} call for request {} has been running for {}ms on {}\n{}", logPrefix, call.getPluginId(), call.getOperation(), call.getRequestId(), age, call.getThread().getName(), stack);
+                }
+                stillStuck.put(call.getInvocationId(), stack);
+            }
+        }
+        stuckStacks.keySet().retainAll(stillStuck.keySet());
+        stuckStacks.putAll(stillStuck);
+        currentCalls.clear();
+        currentCalls.putAll(callsByPlugin);
+
+        Set<String> registeredIds = pluginManagement.getRegisteredPluginIds();
+        registeredIds.forEach(pluginId -> updatePluginHealth(pluginId, callsByPlugin.getOrDefault(pluginId, new PluginCalls())));
+        degradedPlugins.keySet().retainAll(registeredIds);
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    public String getStuckCallReport() {
+        StringBuilder sb = new StringBuilder();
+        invocationTracker.getInFlightCalls().stream()
+                .filter(call -> stuckStacks.containsKey(call.getInvocationId()))
+                .forEach(call -> sb.append(String.format("%s %s request=%s started=%s age=%dms%n%s%n", call.getPluginId(), call.getOperation(), call.getRequestId(), call.getStartTime(), call.getAgeMillis(), stuckStacks.get(call.getInvocationId()))));
+        return (sb.length() == 0 ? "No stuck plugin calls" : sb.toString());
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        PluginCalls pc = currentCalls.getOrDefault(plugin.getId(), new PluginCalls());
+        LongAdder total = stuckTotals.get(plugin.getId());
+        metrics.put("container.watchdog.in-flight", (long) pc.inFlight);
+        metrics.put("container.watchdog.stuck-calls", (long) pc.stuck);
+        metrics.put("container.watchdog.stuck-total", (total == null ? 0L : total.sum()));
+        metrics.put("container.watchdog.oldest-call-ms", pc.oldestMillis);
+        return metrics;
+    }
+
+    @Override
+    public HealthStatus getHealthAssessment(RegisteredPlugin plugin) {
+        return degradedPlugins.get(plugin.getId());
+    }
+
+    private void updatePluginHealth(String pluginId, PluginCalls pc) {
+        final String logPrefix = "updatePluginHealth() - ";
+        // Only the container's own view changes here; the stuck plugin itself is never called from the scheduler thread
+        HealthStatus degraded = null;
+        if (pc.stuck > 0 && (pc.oldestMillis >= failThreshold || pc.stuck >= failCount)) {
+            degraded = new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment(pc.stuck + " plugin call(s) stuck, oldest " + pc.oldestMillis + "ms");
+        }
+        else if (pc.stuck > 0) {
+            degraded = new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment(pc.stuck + " plugin call(s) stuck, oldest " + pc.oldestMillis + "ms");
+        }
+
+        if (degraded != null) {
+            HealthStatus previous = degradedPlugins.put(pluginId, degraded);
+            if (previous == null || previous.getHealthState() != degraded.getHealthState()) {
+                log.warn("{}Degrading plugin {} to {}: {}", logPrefix, pluginId, degraded.getHealthState(), degraded.getHealthComment());
+            }
+        }
+        else if (degradedPlugins.remove(pluginId) != null) {
+            log.info("{}No more stuck calls for plugin {}, restoring its own health", logPrefix, pluginId);
+        }
+    }
+
+    /**
+     * True while the plugin has enough stuck calls to be treated as FAILED, so that no new requests are sent to it.
+     */
+    public boolean isFailed(String pluginId) {
+        HealthStatus degraded = degradedPlugins.get(pluginId);
+        return degraded != null && degraded.getHealthState() == HealthState.FAILED;
+    }
+
+    private String formatStack(InFlightCall call) {
+        StringBuilder sb = new StringBuilder();
+        for (StackTraceElement ste : call.getThread().getStackTrace()) {
+            sb.append("\tat ").append(ste).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class PluginCalls {
+
+        private int inFlight = 0;
+        private int stuck = 0;
+        private long oldestMillis = 0;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *   platformconnector - PluginLifecycleEvent.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.monitoring.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Name("com.slinkytoybox.platformconnector.PluginLifecycle")
+@Label("Plugin Lifecycle Change")
+@Category({"Platform Connector", "Plugins"})
+@Description("A plugin being loaded, started, stopped or unloaded")
+@StackTrace(false)
+public class PluginLifecycleEvent extends Event {
+
+    @Label("Plugin Id")
+    public String pluginId;
+
+    @Label("Action")
+    public String action;
+
+    @Label("Resulting State")
+    public String state;
+
+    @Label("Success")
+    public boolean success;
+
+}
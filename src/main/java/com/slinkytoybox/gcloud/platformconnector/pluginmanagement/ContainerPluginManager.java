@@ -0,0 +1,456 @@
+/*
+ *   platformconnector - ContainerPluginManager.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import com.slinkytoybox.gcloud.platformconnector.init.StartupCoordinator;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.pf4j.AbstractExtensionFinder;
+import org.pf4j.Extension;
+import org.pf4j.ExtensionDescriptor;
+import org.pf4j.ExtensionFinder;
+import org.pf4j.ExtensionWrapper;
+import org.pf4j.PluginDependency;
+import org.pf4j.PluginDescriptor;
+import org.pf4j.PluginDescriptorFinder;
+import org.pf4j.PluginState;
+import org.pf4j.PluginStateEvent;
+import org.pf4j.PluginWrapper;
+import org.pf4j.spring.ExtensionsInjector;
+import org.pf4j.spring.SpringPluginManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.support.AbstractAutowireCapableBeanFactory;
+
+/**
+ * Plugin manager that starts plugins concurrently, each one as soon as the plugins it depends on have started, and
+ * times loading and each plugin start for the startup timeline. A plugin that takes longer than plugin.start-timeout
+ * no longer holds up the boot; it carries on in the background and is marked STARTED when it finishes, and its
+ * extensions are registered as beans then. Start threads add to pf4j's started list, so every access to it is
+ * synchronised on the list.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+public class ContainerPluginManager extends SpringPluginManager {
+
+    @Autowired
+    private StartupCoordinator startupCoordinator;
+
+    @Value("${plugin.start-parallelism:4}")
+    private Integer startParallelism;
+
+    @Value("${plugin.start-timeout:60000}")
+    private Long startTimeout;
+
+    @Value("${plugin.extension-index.enabled:true}")
+    private Boolean indexEnabled;
+
+    @Value("${plugin.extension-index.file:plugins/extension-index.properties}")
+    private String indexFile;
+
+    private PluginExtensionIndex extensionIndex = null;
+
+    private final Map<String, Long> startDurations = new ConcurrentHashMap<>();
+    private ExecutorService startExecutor = null;
+    private final Object extensionLock = new Object();
+    private boolean extensionsInjected = false;
+
+    @Override
+    protected PluginDescriptorFinder createPluginDescriptorFinder() {
+        // Called from the pf4j constructor, before injection, so the index is only looked up when a plugin is found
+        return new IndexedDescriptorFinder(super.createPluginDescriptorFinder());
+    }
+
+    @Override
+    protected ExtensionFinder createExtensionFinder() {
+        return new IndexedExtensionFinder(super.createExtensionFinder());
+    }
+
+    private synchronized PluginExtensionIndex getExtensionIndex() {
+        if (extensionIndex == null && indexEnabled) {
+            extensionIndex = new PluginExtensionIndex(Path.of(indexFile));
+        }
+        return extensionIndex;
+    }
+
+    @Override
+    @PostConstruct
+    public void init() {
+        super.init();
+        List<PluginWrapper> started;
+        synchronized (extensionLock) {
+            extensionsInjected = true;
+            started = getStartedPlugins();
+        }
+        // Catches plugins that finished between startPlugins() returning and pf4j injecting extensions. Beans are
+        // registered outside the lock, as Spring may hold its own lock while this bean is being created
+        started.forEach(this::injectExtensions);
+        saveExtensionIndex();
+    }
+
+    @Override
+    public List<PluginWrapper> getStartedPlugins() {
+        synchronized (startedPlugins) {
+            return new ArrayList<>(startedPlugins);
+        }
+    }
+
+    @Override
+    public PluginState startPlugin(String pluginId) {
+        synchronized (startedPlugins) {
+            return super.startPlugin(pluginId);
+        }
+    }
+
+    @Override
+    public void stopPlugins() {
+        synchronized (startedPlugins) {
+            super.stopPlugins();
+        }
+    }
+
+    @Override
+    protected PluginState stopPlugin(String pluginId, boolean stopDependents) {
+        synchronized (startedPlugins) {
+            return super.stopPlugin(pluginId, stopDependents);
+        }
+    }
+
+    @Override
+    public String loadPlugin(Path pluginPath) {
+        String pluginId = super.loadPlugin(pluginPath);
+        saveExtensionIndex();
+        return pluginId;
+    }
+
+    @Override
+    public void loadPlugins() {
+        final String logPrefix = "loadPlugins() - ";
+        long startedAt = startupCoordinator.getUptime();
+        Throwable error = null;
+        try {
+            super.loadPlugins();
+        }
+        catch (RuntimeException ex) {
+            error = ex;
+            throw ex;
+        }
+        finally {
+            long duration = startupCoordinator.getUptime() - startedAt;
+            PluginExtensionIndex index = getExtensionIndex();
+            String indexUse = (index == null ? "index disabled" : "index hits " + index.getHits() + ", misses " + index.getMisses());
+            startupCoordinator.recordTask("plugins load (" + indexUse + ")", false, startedAt, duration, error);
+            log.info("{}Loaded {} plugins in {}ms, {}", logPrefix, getPlugins().size(), duration, indexUse);
+        }
+    }
+
+    @Override
+    public void startPlugins() {
+        final String logPrefix = "startPlugins() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // resolvedPlugins is in dependency order, so each plugin's dependencies are already in the map
+        Map<String, CompletableFuture<Boolean>> starts = new HashMap<>();
+        Map<String, CompletableFuture<Boolean>> timedStarts = new LinkedHashMap<>();
+        for (PluginWrapper pluginWrapper : resolvedPlugins) {
+            PluginState pluginState = pluginWrapper.getPluginState();
+            if (pluginState == PluginState.DISABLED || pluginState == PluginState.STARTED) {
+                continue;
+            }
+            List<String> dependencyIds = pluginWrapper.getDescriptor().getDependencies().stream()
+                    .map(PluginDependency::getPluginId)
+                    .filter(starts::containsKey)
+                    .toList();
+            CompletableFuture<Boolean> start = allSettled(dependencyIds.stream().map(starts::get).toList())
+                    .thenApplyAsync(v -> {
+                        if (!dependenciesStarted(pluginWrapper)) {
+                            failPlugin(pluginWrapper, pluginState, new IllegalStateException("A required dependency did not start"));
+                            return false;
+                        }
+                        return startResolvedPlugin(pluginWrapper, pluginState);
+                    }, getStartExecutor());
+            starts.put(pluginWrapper.getPluginId(), start);
+            // The timeout runs from when the dependencies settled or timed out, so a slow dependency does not eat into it
+            CompletableFuture<Boolean> timed = allSettled(dependencyIds.stream().map(timedStarts::get).toList())
+                    .thenCompose(v -> start.copy().orTimeout(startTimeout, TimeUnit.MILLISECONDS));
+            timedStarts.put(pluginWrapper.getPluginId(), timed);
+        }
+
+        log.info("{}Starting {} plugins, up to {} at a time", logPrefix, starts.size(), startParallelism);
+        allSettled(new ArrayList<>(timedStarts.values())).join();
+        timedStarts.forEach((pluginId, timed) -> {
+            if (timed.isCompletedExceptionally() && !starts.get(pluginId).isDone()) {
+                log.warn("{}Plugin {} did not start within {}ms. Carrying on; it will be marked STARTED if it finishes", logPrefix, pluginId, startTimeout);
+            }
+        });
+        log.info("{}Plugin start finished, {} of {} started", logPrefix, getStartedPlugins().size(), starts.size());
+    }
+
+    public void saveExtensionIndex() {
+        PluginExtensionIndex index = getExtensionIndex();
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    private CompletableFuture<Void> allSettled(List<CompletableFuture<Boolean>> futures) {
+        return CompletableFuture.allOf(futures.stream().map(f -> f.handle((r, ex) -> r)).toArray(CompletableFuture[]::new));
+    }
+
+    private boolean dependenciesStarted(PluginWrapper pluginWrapper) {
+        for (PluginDependency dependency : pluginWrapper.getDescriptor().getDependencies()) {
+            PluginWrapper dependencyWrapper = getPlugin(dependency.getPluginId());
+            boolean started = (dependencyWrapper != null && dependencyWrapper.getPluginState() == PluginState.STARTED);
+            if (!started && !dependency.isOptional()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized ExecutorService getStartExecutor() {
+        if (startExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(startParallelism, startParallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "plugin-start-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            startExecutor = executor;
+        }
+        return startExecutor;
+    }
+
+    private boolean startResolvedPlugin(PluginWrapper pluginWrapper, PluginState pluginState) {
+        final String logPrefix = "startResolvedPlugin() - ";
+        long startedAt = startupCoordinator.getUptime();
+        Throwable error = null;
+        try {
+            log.info("{}Start plugin '{}'", logPrefix, getPluginLabel(pluginWrapper.getDescriptor()));
+            pluginWrapper.getPlugin().start();
+            pluginWrapper.setPluginState(PluginState.STARTED);
+            pluginWrapper.setFailedException(null);
+            boolean late;
+            synchronized (extensionLock) {
+                synchronized (startedPlugins) {
+                    startedPlugins.add(pluginWrapper);
+                }
+                // Only a plugin that outlived the start timeout gets here after init() has taken its list
+                late = extensionsInjected;
+            }
+            if (late) {
+                injectExtensions(pluginWrapper);
+            }
+        }
+        catch (Exception | LinkageError ex) {
+            error = ex;
+            pluginWrapper.setPluginState(PluginState.FAILED);
+            pluginWrapper.setFailedException(ex);
+            log.error("{}Unable to start plugin '{}'", logPrefix, getPluginLabel(pluginWrapper.getDescriptor()), ex);
+        }
+        finally {
+            long duration = startupCoordinator.getUptime() - startedAt;
+            startDurations.put(pluginWrapper.getPluginId(), duration);
+            startupCoordinator.recordTask("plugin " + pluginWrapper.getPluginId() + " start", false, startedAt, duration, error);
+            log.debug("{}Plugin {} start took {}ms", logPrefix, pluginWrapper.getPluginId(), duration);
+            firePluginStateEvent(new PluginStateEvent(this, pluginWrapper, pluginState));
+        }
+        return error == null;
+    }
+
+    private void injectExtensions(PluginWrapper pluginWrapper) {
+        final String logPrefix = "injectExtensions() - ";
+        AbstractAutowireCapableBeanFactory beanFactory = (AbstractAutowireCapableBeanFactory) getApplicationContext().getAutowireCapableBeanFactory();
+        log.debug("{}Registering extensions of plugin {} as beans", logPrefix, pluginWrapper.getPluginId());
+        try {
+            new PluginExtensionsInjector(beanFactory).injectExtensions(pluginWrapper);
+        }
+        catch (RuntimeException ex) {
+            // The plugin has started and is still reached through pf4j, so this does not fail it
+            log.error("{}Could not register extensions of plugin {} as beans", logPrefix, pluginWrapper.getPluginId(), ex);
+        }
+    }
+
+    private void failPlugin(PluginWrapper pluginWrapper, PluginState pluginState, Exception ex) {
+        final String logPrefix = "failPlugin() - ";
+        log.error("{}Not starting plugin '{}': {}", logPrefix, getPluginLabel(pluginWrapper.getDescriptor()), ex.getMessage());
+        pluginWrapper.setPluginState(PluginState.FAILED);
+        pluginWrapper.setFailedException(ex);
+        firePluginStateEvent(new PluginStateEvent(this, pluginWrapper, pluginState));
+    }
+
+    public Long getStartDuration(String pluginId) {
+        return startDurations.get(pluginId);
+    }
+
+    private String getJarHash(String pluginId) {
+        PluginExtensionIndex index = getExtensionIndex();
+        PluginWrapper pluginWrapper = getPlugin(pluginId);
+        return (index == null || pluginWrapper == null ? null : index.getJarHash(pluginWrapper.getPluginPath()));
+    }
+
+    private class IndexedDescriptorFinder implements PluginDescriptorFinder {
+
+        private final PluginDescriptorFinder delegate;
+
+        private IndexedDescriptorFinder(PluginDescriptorFinder delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isApplicable(Path pluginPath) {
+            return delegate.isApplicable(pluginPath);
+        }
+
+        @Override
+        public PluginDescriptor find(Path pluginPath) {
+            PluginExtensionIndex index = getExtensionIndex();
+            if (index == null) {
+                return delegate.find(pluginPath);
+            }
+            String jarHash = index.getJarHash(pluginPath);
+            PluginDescriptor descriptor = index.getDescriptor(jarHash);
+            if (descriptor == null) {
+                descriptor = delegate.find(pluginPath);
+                index.putDescriptor(jarHash, descriptor);
+            }
+            return descriptor;
+        }
+    }
+
+    /**
+     * pf4j only registers extensions for every started plugin at once. This does it for one plugin, skipping any
+     * extension that is already a bean.
+     */
+    private class PluginExtensionsInjector extends ExtensionsInjector {
+
+        private PluginExtensionsInjector(AbstractAutowireCapableBeanFactory beanFactory) {
+            super(ContainerPluginManager.this, beanFactory);
+        }
+
+        private void injectExtensions(PluginWrapper pluginWrapper) {
+            final String logPrefix = "injectExtensions() - ";
+            for (String extensionClassName : getExtensionClassNames(pluginWrapper.getPluginId())) {
+                try {
+                    registerExtension(pluginWrapper.getPluginClassLoader().loadClass(extensionClassName));
+                }
+                catch (ClassNotFoundException ex) {
+                    log.error("{}Could not register extension {} of plugin {}", logPrefix, extensionClassName, pluginWrapper.getPluginId(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers per-plugin extension lookups from the index once a jar has been scanned, instead of reading and checking
+     * every extension class again. Lookups across all plugins are left to pf4j.
+     */
+    private class IndexedExtensionFinder implements ExtensionFinder {
+
+        private final ExtensionFinder delegate;
+
+        private IndexedExtensionFinder(ExtensionFinder delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T> List<ExtensionWrapper<T>> find(Class<T> type) {
+            return delegate.find(type);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<ExtensionWrapper<T>> find(Class<T> type, String pluginId) {
+            List<ExtensionWrapper> found = indexedFind(pluginId, type, () -> new ArrayList<>(delegate.find(type, pluginId)));
+            List<ExtensionWrapper<T>> result = new ArrayList<>();
+            found.forEach(wrapper -> result.add((ExtensionWrapper<T>) wrapper));
+            return result;
+        }
+
+        @Override
+        public List<ExtensionWrapper> find(String pluginId) {
+            return indexedFind(pluginId, null, () -> delegate.find(pluginId));
+        }
+
+        @Override
+        public Set<String> findClassNames(String pluginId) {
+            return delegate.findClassNames(pluginId);
+        }
+
+        private List<ExtensionWrapper> indexedFind(String pluginId, Class<?> type, Supplier<List<ExtensionWrapper>> scan) {
+            final String logPrefix = "indexedFind() - ";
+            PluginWrapper pluginWrapper = (pluginId == null ? null : getPlugin(pluginId));
+            String jarHash = (pluginWrapper == null ? null : getJarHash(pluginId));
+            // Same rule as pf4j: only started plugins provide extensions
+            if (jarHash == null || pluginWrapper.getPluginState() != PluginState.STARTED) {
+                return scan.get();
+            }
+            PluginExtensionIndex index = getExtensionIndex();
+            String typeName = (type == null ? null : type.getName());
+            List<String> classNames = index.getExtensions(jarHash, typeName);
+            if (classNames != null) {
+                try {
+                    List<ExtensionWrapper> result = new ArrayList<>();
+                    for (String className : classNames) {
+                        Class<?> extensionClass = pluginWrapper.getPluginClassLoader().loadClass(className);
+                        if (type != null && !type.isAssignableFrom(extensionClass)) {
+                            throw new ClassNotFoundException(className + " is no longer a " + typeName);
+                        }
+                        Extension extension = AbstractExtensionFinder.findExtensionAnnotation(extensionClass);
+                        result.add(new ExtensionWrapper<>(new ExtensionDescriptor(extension == null ? 0 : extension.ordinal(), extensionClass), getExtensionFactory()));
+                    }
+                    Collections.sort(result);
+                    return result;
+                }
+                catch (ClassNotFoundException | LinkageError ex) {
+                    log.warn("{}Extension index for {} is out of date, rescanning: {}", logPrefix, pluginId, ex.getMessage());
+                }
+            }
+            List<ExtensionWrapper> scanned = scan.get();
+            index.putExtensions(jarHash, typeName, scanned.stream().map(wrapper -> wrapper.getDescriptor().extensionClass.getName()).toList());
+            return scanned;
+        }
+    }
+
+    @PreDestroy
+    public void stopStartExecutor() {
+        if (startExecutor != null) {
+            startExecutor.shutdownNow();
+        }
+    }
+}
@@ -21,7 +21,11 @@ package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
 
 import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
 import com.slinkytoybox.gcloud.platformconnectorplugin.ContainerInterface;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import java.util.HashSet;
+import java.util.Set;
+import javax.sql.DataSource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -39,6 +43,12 @@ public class PluginCallback implements ContainerInterface {
     
     @Autowired
             private PlatformEncryption encryptor;
+
+    @Autowired
+    private PluginSecretCache secretCache;
+
+    @Autowired
+    private PluginDataSourceService dataSourceService;
     
     void setPluginManagement (PluginManagement pluginManagement) {
         this.pluginManagement = pluginManagement;
@@ -56,10 +66,30 @@ public class PluginCallback implements ContainerInterface {
             throw new IllegalArgumentException("Plugin " + pluginId + " is not registered");
         }
 
+        if (!discoveryShape(plugin.getHealth()).equals(discoveryShape(healthResult))) {
+            pluginManagement.bumpDiscoveryVersion("Components or metrics of " + pluginId + " changed");
+        }
         plugin.setHealth(healthResult);
         log.trace("{}Leaving Method", logPrefix);
     }
 
+    static Set<String> discoveryShape(HealthResult health) {
+        Set<String> shape = new HashSet<>();
+        if (health == null) {
+            return shape;
+        }
+        if (health.getComponentStatus() != null) {
+            health.getComponentStatus().keySet().forEach(componentName -> shape.add("component:" + componentName));
+        }
+        if (health.getMetrics() != null) {
+            for (HealthMetric metric : health.getMetrics()) {
+                String metricClass = (metric.getMetricValue() == null ? "null" : metric.getMetricValue().getClass().getSimpleName());
+                shape.add("metric:" + metric.getMetricName() + ":" + metricClass);
+            }
+        }
+        return shape;
+    }
+
     @Override
     public String encrypt(String plainText) {
         final String logPrefix = "encrypt() - ";
@@ -71,7 +101,14 @@ public class PluginCallback implements ContainerInterface {
     public String decrypt(String encryptedText) {
         final String logPrefix = "decrypt() - ";
         log.trace("{}Entering Method", logPrefix);
-        return encryptor.decrypt(encryptedText);
+        return secretCache.decrypt(encryptedText, encryptor::decrypt);
+    }
+
+    // Not in ContainerInterface yet, so plugins on the current API reach this reflectively. Becomes an @Override once it is
+    public DataSource getDataSource(String dataSourceName) {
+        final String logPrefix = "getDataSource() - ";
+        log.trace("{}Entering Method", logPrefix);
+        return dataSourceService.getDataSource(dataSourceName);
     }
 
 }
@@ -0,0 +1,88 @@
+/*
+ *   platformconnector - PluginCallerResolver.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.pf4j.PluginManager;
+import org.pf4j.PluginWrapper;
+import org.pf4j.spring.SpringPluginManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Works out which plugin is calling into the container, since the container interface calls do not carry a plugin id.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+public class PluginCallerResolver {
+
+    public static final String CONTAINER_ID = "container";
+
+    @Autowired
+    private SpringPluginManager pluginManager;
+
+    // Plugin managers outside the main one, such as the staging manager used during an upgrade
+    private final List<PluginManager> stagingManagers = new CopyOnWriteArrayList<>();
+
+    private final StackWalker stackWalker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    public String findCallingPlugin() {
+        PluginWrapper pw = findCallingPluginWrapper();
+        return (pw == null ? CONTAINER_ID : pw.getPluginId());
+    }
+
+    /**
+     * @return the loaded plugin version that is calling, which may belong to a staging manager, or null for the
+     * container itself
+     */
+    public PluginWrapper findCallingPluginWrapper() {
+        // The first frame loaded by a plugin class loader identifies which plugin asked
+        return stackWalker.walk(frames -> frames
+                .map(StackWalker.StackFrame::getDeclaringClass)
+                .filter(cls -> cls.getClassLoader() != null && cls.getClassLoader() != PluginCallerResolver.class.getClassLoader())
+                .map(this::whichPlugin)
+                .filter(pw -> pw != null)
+                .findFirst()
+                .orElse(null));
+    }
+
+    public void addStagingManager(PluginManager manager) {
+        stagingManagers.add(manager);
+    }
+
+    public void removeStagingManager(PluginManager manager) {
+        stagingManagers.remove(manager);
+    }
+
+    private PluginWrapper whichPlugin(Class<?> cls) {
+        PluginWrapper pw = pluginManager.whichPlugin(cls);
+        if (pw == null) {
+            for (PluginManager manager : stagingManagers) {
+                pw = manager.whichPlugin(cls);
+                if (pw != null) {
+                    break;
+                }
+            }
+        }
+        return pw;
+    }
+}
@@ -20,7 +20,6 @@
 package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
 
 import lombok.extern.slf4j.Slf4j;
-import org.pf4j.spring.SpringPluginManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.DependsOn;
@@ -35,10 +34,10 @@ public class PluginConfig {
 
     @Bean
     @DependsOn({"CloudDatabaseConnection", "PlatformEncryption", "GCloudAPIConnection"})
-    public SpringPluginManager pluginManager() {
+    public ContainerPluginManager pluginManager() {
         final String logPrefix = "pluginManager() - ";
         log.trace("{}Entering method", logPrefix);
-        return new SpringPluginManager();
+        return new ContainerPluginManager();
     }
 
     @Bean
@@ -0,0 +1,411 @@
+/*
+ *   platformconnector - PluginDataSourceService.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.ContainerPluginMonitor;
+import com.slinkytoybox.gcloud.platformconnector.security.PlatformEncryption;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Wrapper;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.StreamSupport;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.pf4j.PluginWrapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Named connection pools owned by the container and shared by plugins, so that each plugin does not need its own pool.
+ * Pools are defined under plugin.datasource.&lt;name&gt;.* and created on first use. Each plugin is limited to
+ * plugin-limit concurrent connections per pool, and any connections it still holds are closed when it is stopped or
+ * unloaded.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginDataSourceService implements ContainerPluginMonitor {
+
+    private static final String PREFIX = "plugin.datasource.";
+
+    @Autowired
+    private ConfigurableEnvironment env;
+
+    @Autowired
+    private PlatformEncryption encryptor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private PluginCallerResolver callerResolver;
+
+    private final Map<String, HikariDataSource> pools = new ConcurrentHashMap<>();
+    // pluginId -> datasource name -> lease
+    private final Map<String, Map<String, PluginLease>> pluginLeases = new ConcurrentHashMap<>();
+    private PluginManagement pluginManagement;
+
+    void setPluginManagement(PluginManagement pluginManagement) {
+        this.pluginManagement = pluginManagement;
+    }
+
+    public DataSource getDataSource(String name) {
+        final String logPrefix = "getDataSource() - ";
+        log.trace("{}Entering Method", logPrefix);
+        PluginWrapper caller = callerResolver.findCallingPluginWrapper();
+        String pluginId = (caller == null ? PluginCallerResolver.CONTAINER_ID : caller.getPluginId());
+        if (env.getProperty(PREFIX + name + ".url") == null) {
+            log.error("{}Plugin {} asked for undefined data source {}", logPrefix, pluginId, name);
+            throw new IllegalArgumentException("Data source " + name + " is not defined");
+        }
+        String allowed = env.getProperty(PREFIX + name + ".allowed-plugins", "");
+        if (!allowed.isBlank() && Arrays.stream(allowed.split(",")).map(String::trim).noneMatch(pluginId::equals)) {
+            log.error("{}Plugin {} is not allowed to use data source {}", logPrefix, pluginId, name);
+            throw new IllegalArgumentException("Plugin " + pluginId + " is not allowed to use data source " + name);
+        }
+        HikariDataSource pool = pools.computeIfAbsent(name, this::createPool);
+        Map<String, PluginLease> leases = pluginLeases.computeIfAbsent(pluginId, k -> new ConcurrentHashMap<>());
+        PluginLease lease = leases.get(name);
+        if (lease == null) {
+            PluginLease created = new PluginLease(pluginId, name, pool, env.getProperty(PREFIX + name + ".plugin-limit", Integer.class, 4));
+            lease = leases.putIfAbsent(name, created);
+            if (lease == null) {
+                lease = created;
+                if (pluginManagement != null) {
+                    // The lease adds container.datasource metrics for the plugin
+                    pluginManagement.bumpDiscoveryVersion("Plugin " + pluginId + " started using data source " + name);
+                }
+            }
+        }
+        log.debug("{}Handing data source {} to plugin {} with a limit of {} connections", logPrefix, name, pluginId, lease.limit);
+        return new VersionDataSource(lease, (caller == null ? null : caller.getPluginClassLoader()));
+    }
+
+    private HikariDataSource createPool(String name) {
+        final String logPrefix = "createPool() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Creating shared data source {}", logPrefix, name);
+        String password = encryptor.decrypt(env.getProperty(PREFIX + name + ".password", ""));
+        if (password == null) {
+            throw new IllegalArgumentException("Password for data source " + name + " could not be decrypted");
+        }
+        String propPrefix = PREFIX + name + ".properties.";
+        Properties dsProps = new Properties();
+        StreamSupport.stream(env.getPropertySources().spliterator(), false)
+                .filter(ps -> ps instanceof EnumerablePropertySource)
+                .map(ps -> ((EnumerablePropertySource<?>) ps).getPropertyNames())
+                .flatMap(Arrays::stream)
+                .distinct()
+                .filter(prop -> prop.startsWith(propPrefix))
+                .forEach(prop -> dsProps.setProperty(prop.substring(propPrefix.length()), env.getProperty(prop)));
+
+        HikariDataSource pool = new HikariDataSource();
+        pool.setPoolName("Plugin-" + name);
+        pool.setJdbcUrl(env.getProperty(PREFIX + name + ".url"));
+        pool.setUsername(env.getProperty(PREFIX + name + ".username"));
+        pool.setPassword(password);
+        pool.setDataSourceProperties(dsProps);
+        pool.setMinimumIdle(env.getProperty(PREFIX + name + ".min-idle", Integer.class, 0));
+        pool.setMaximumPoolSize(env.getProperty(PREFIX + name + ".max-size", Integer.class, 10));
+        pool.setConnectionTimeout(env.getProperty(PREFIX + name + ".connection-timeout", Long.class, 10000L));
+        pool.setIdleTimeout(env.getProperty(PREFIX + name + ".idle-timeout", Long.class, 300000L));
+        pool.setMaxLifetime(env.getProperty(PREFIX + name + ".max-lifetime", Long.class, 1800000L));
+        pool.setLeakDetectionThreshold(env.getProperty(PREFIX + name + ".leak-detection-threshold", Long.class, 0L));
+        pool.setMetricRegistry(meterRegistry);
+        return pool;
+    }
+
+    public void releasePlugin(String pluginId) {
+        final String logPrefix = "releasePlugin() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, PluginLease> leases = pluginLeases.remove(pluginId);
+        if (leases != null) {
+            leases.values().forEach(lease -> lease.closeAll(null));
+            log.info("{}Released shared data sources held by plugin {}", logPrefix, pluginId);
+        }
+    }
+
+    /**
+     * Closes the connections held by one loaded version of a plugin, leaving those of any other version with the same
+     * id, such as the staged copy during an upgrade, open.
+     *
+     * @param pluginId the plugin
+     * @param versionLoader the class loader of the version being unloaded
+     */
+    public void releasePluginVersion(String pluginId, ClassLoader versionLoader) {
+        final String logPrefix = "releasePluginVersion() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, PluginLease> leases = pluginLeases.get(pluginId);
+        if (leases != null && versionLoader != null) {
+            leases.values().forEach(lease -> lease.closeAll(versionLoader));
+            log.info("{}Released shared data source connections held by one version of plugin {}", logPrefix, pluginId);
+        }
+    }
+
+    @PreDestroy
+    public void closePools() {
+        final String logPrefix = "closePools() - ";
+        log.trace("{}Entering Method", logPrefix);
+        pluginLeases.keySet().forEach(this::releasePlugin);
+        pools.values().forEach(HikariDataSource::close);
+        log.info("{}Closed {} shared data sources", logPrefix, pools.size());
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        Map<String, PluginLease> leases = pluginLeases.get(plugin.getId());
+        if (leases != null) {
+            leases.forEach((name, lease) -> {
+                metrics.put("container.datasource." + name + ".active", (long) lease.open.size());
+                metrics.put("container.datasource." + name + ".rejected", lease.rejected.sum());
+            });
+        }
+        return metrics;
+    }
+
+    /**
+     * A plugin's share of one pool. It enforces the per-plugin limit across every loaded version of the plugin and
+     * tracks which version opened each connection.
+     */
+    private class PluginLease {
+
+        private final String pluginId;
+        private final String name;
+        private final HikariDataSource pool;
+        private final int limit;
+        private final Semaphore permits;
+        private final Map<Connection, Optional<ClassLoader>> open = new ConcurrentHashMap<>();
+        private final LongAdder rejected = new LongAdder();
+
+        private PluginLease(String pluginId, String name, HikariDataSource pool, int limit) {
+            this.pluginId = pluginId;
+            this.name = name;
+            this.pool = pool;
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+        }
+
+        private Connection getConnection(ClassLoader owner) throws SQLException {
+            final String logPrefix = "getConnection() - ";
+            try {
+                if (!permits.tryAcquire(pool.getConnectionTimeout(), TimeUnit.MILLISECONDS)) {
+                    rejected.increment();
+                    log.warn("{}Plugin {} has reached its limit of {} connections to {}", logPrefix, pluginId, limit, name);
+                    throw new SQLException("Plugin " + pluginId + " has reached its limit of " + limit + " connections to " + name);
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection to " + name, ex);
+            }
+            try {
+                Connection conn = pool.getConnection();
+                Connection tracked = trackedConnection(conn);
+                open.put(tracked, Optional.ofNullable(owner));
+                return tracked;
+            }
+            catch (SQLException | RuntimeException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+
+        private Connection trackedConnection(Connection conn) {
+            AtomicBoolean closed = new AtomicBoolean(false);
+            Connection[] self = new Connection[1];
+            self[0] = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("close")) {
+                    if (closed.compareAndSet(false, true)) {
+                        open.remove(self[0]);
+                        permits.release();
+                        conn.close();
+                    }
+                    return null;
+                }
+                if (method.getName().equals("isClosed") && closed.get()) {
+                    return true;
+                }
+                if (isUnwrap(method)) {
+                    return refuseUnwrap(method);
+                }
+                return ownedBy(self[0], method, invoke(conn, method, args));
+            });
+            return self[0];
+        }
+
+        /**
+         * Statements, metadata and result sets hand back the object that made them. Wrap them so that always leads
+         * back to the tracked connection, otherwise a plugin could close the pooled connection underneath it and keep
+         * the permit.
+         */
+        private Object ownedBy(Object owner, Method method, Object result) {
+            Class<?> type = method.getReturnType();
+            if (result == null || !type.isInterface()) {
+                return result;
+            }
+            String ownerMethod;
+            if (Statement.class.isAssignableFrom(type) || DatabaseMetaData.class.isAssignableFrom(type)) {
+                ownerMethod = "getConnection";
+            }
+            else if (ResultSet.class.isAssignableFrom(type) && owner instanceof Statement) {
+                ownerMethod = "getStatement";
+            }
+            else {
+                return result;
+            }
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, innerMethod, args) -> {
+                if (innerMethod.getName().equals(ownerMethod) && innerMethod.getParameterCount() == 0) {
+                    return owner;
+                }
+                if (isUnwrap(innerMethod)) {
+                    return refuseUnwrap(innerMethod);
+                }
+                return ownedBy(proxy, innerMethod, invoke(result, innerMethod, args));
+            });
+        }
+
+        private boolean isUnwrap(Method method) {
+            return method.getDeclaringClass() == Wrapper.class;
+        }
+
+        private Object refuseUnwrap(Method method) throws SQLException {
+            // Unwrapping would hand the plugin the pooled connection, which it could close without returning the permit
+            if (method.getName().equals("isWrapperFor")) {
+                return false;
+            }
+            throw new SQLException("Shared connections cannot be unwrapped");
+        }
+
+        private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private void closeAll(ClassLoader owner) {
+            final String logPrefix = "closeAll() - ";
+            List<Connection> held = open.entrySet().stream()
+                    .filter(e -> owner == null || e.getValue().orElse(null) == owner)
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (!held.isEmpty()) {
+                log.warn("{}Plugin {} still held {} connections to {}, closing them", logPrefix, pluginId, held.size(), name);
+            }
+            for (Connection conn : held) {
+                try {
+                    conn.close();
+                }
+                catch (SQLException ex) {
+                    log.debug("{}Error closing connection for plugin {}", logPrefix, pluginId, ex);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The DataSource a plugin actually sees, tied to the version of the plugin that asked for it.
+     */
+    private static class VersionDataSource implements DataSource {
+
+        private final PluginLease lease;
+        private final ClassLoader owner;
+
+        private VersionDataSource(PluginLease lease, ClassLoader owner) {
+            this.lease = lease;
+            this.owner = owner;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return lease.getConnection(owner);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Shared data sources use the credentials they were configured with");
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return lease.pool.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Shared data sources cannot be reconfigured by plugins");
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Shared data sources cannot be reconfigured by plugins");
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return lease.pool.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return lease.pool.getParentLogger();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            // Do not let plugins reach the shared pool itself
+            throw new SQLException("Shared data sources cannot be unwrapped");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *   platformconnector - PluginExtensionIndex.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.pf4j.DefaultPluginDescriptor;
+import org.pf4j.PluginDependency;
+import org.pf4j.PluginDescriptor;
+
+/**
+ * Persistent index of plugin descriptors and extension class names, keyed on the SHA-256 of each plugin jar. A jar is
+ * only re-hashed when its size or modification time changes, and a changed jar simply gets a new key, so stale entries
+ * are never used and are pruned on the next save.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+public class PluginExtensionIndex {
+
+    private static final String FILE_PREFIX = "file.";
+    private static final String ALL_EXTENSIONS = "*";
+
+    private final Path indexFile;
+    private final Properties index = new Properties();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private boolean dirty = false;
+
+    public PluginExtensionIndex(Path indexFile) {
+        final String logPrefix = "PluginExtensionIndex() - ";
+        this.indexFile = indexFile;
+        if (Files.exists(indexFile)) {
+            try (InputStream in = Files.newInputStream(indexFile)) {
+                index.load(in);
+                log.info("{}Loaded plugin extension index {}", logPrefix, indexFile);
+            }
+            catch (IOException | IllegalArgumentException ex) {
+                log.warn("{}Could not read plugin extension index {}, it will be rebuilt", logPrefix, indexFile, ex);
+                index.clear();
+            }
+        }
+    }
+
+    public synchronized String getJarHash(Path pluginPath) {
+        final String logPrefix = "getJarHash() - ";
+        if (pluginPath == null || !Files.isRegularFile(pluginPath)) {
+            // Exploded plugins in development mode are not indexed
+            return null;
+        }
+        try {
+            String fileKey = FILE_PREFIX + pluginPath.toAbsolutePath().normalize();
+            String stamp = Files.size(pluginPath) + ":" + Files.getLastModifiedTime(pluginPath).toMillis();
+            String cached = index.getProperty(fileKey);
+            if (cached != null && cached.startsWith(stamp + ":")) {
+                return cached.substring(stamp.length() + 1);
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(pluginPath), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+            index.setProperty(fileKey, stamp + ":" + hash);
+            dirty = true;
+            log.debug("{}Hashed {} as {}", logPrefix, pluginPath, hash);
+            return hash;
+        }
+        catch (IOException | NoSuchAlgorithmException ex) {
+            log.warn("{}Could not hash plugin {}, not using the index for it", logPrefix, pluginPath, ex);
+            return null;
+        }
+    }
+
+    public synchronized PluginDescriptor getDescriptor(String jarHash) {
+        String pluginId = (jarHash == null ? null : index.getProperty(jarHash + ".id"));
+        if (pluginId == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        DefaultPluginDescriptor descriptor = new DefaultPluginDescriptor(pluginId,
+                index.getProperty(jarHash + ".description"),
+                index.getProperty(jarHash + ".class"),
+                index.getProperty(jarHash + ".version"),
+                index.getProperty(jarHash + ".requires", "*"),
+                index.getProperty(jarHash + ".provider"),
+                index.getProperty(jarHash + ".license"));
+        splitList(index.getProperty(jarHash + ".dependencies", "")).forEach(dependency -> descriptor.addDependency(new PluginDependency(dependency)));
+        return descriptor;
+    }
+
+    public synchronized void putDescriptor(String jarHash, PluginDescriptor descriptor) {
+        if (jarHash == null || descriptor == null) {
+            return;
+        }
+        putIfSet(jarHash + ".id", descriptor.getPluginId());
+        putIfSet(jarHash + ".description", descriptor.getPluginDescription());
+        putIfSet(jarHash + ".class", descriptor.getPluginClass());
+        putIfSet(jarHash + ".version", descriptor.getVersion());
+        putIfSet(jarHash + ".requires", descriptor.getRequires());
+        putIfSet(jarHash + ".provider", descriptor.getProvider());
+        putIfSet(jarHash + ".license", descriptor.getLicense());
+        dirty = true;
+        // Same form the PluginDependency(String) constructor parses: id, ? when optional, then @version
+        index.setProperty(jarHash + ".dependencies", descriptor.getDependencies().stream()
+                .map(d -> d.getPluginId() + (d.isOptional() ? "?" : "") + (d.getPluginVersionSupport() == null || d.getPluginVersionSupport().equals("*") ? "" : "@" + d.getPluginVersionSupport()))
+                .collect(Collectors.joining(",")));
+    }
+
+    /**
+     * @param extensionType extension interface name, or null for all extensions of the plugin
+     * @return indexed class names, or null when this jar and type have not been indexed
+     */
+    public synchronized List<String> getExtensions(String jarHash, String extensionType) {
+        String classNames = (jarHash == null ? null : index.getProperty(extensionKey(jarHash, extensionType)));
+        if (classNames == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return splitList(classNames);
+    }
+
+    public synchronized void putExtensions(String jarHash, String extensionType, List<String> classNames) {
+        if (jarHash != null) {
+            index.setProperty(extensionKey(jarHash, extensionType), String.join(",", classNames));
+            dirty = true;
+        }
+    }
+
+    public synchronized void save() {
+        final String logPrefix = "save() - ";
+        if (!dirty) {
+            return;
+        }
+        Set<String> liveHashes = new HashSet<>();
+        index.stringPropertyNames().stream()
+                .filter(key -> key.startsWith(FILE_PREFIX))
+                .forEach(key -> {
+                    Path path = Path.of(key.substring(FILE_PREFIX.length()));
+                    if (Files.exists(path)) {
+                        String value = index.getProperty(key);
+                        liveHashes.add(value.substring(value.lastIndexOf(':') + 1));
+                    }
+                    else {
+                        index.remove(key);
+                    }
+                });
+        index.stringPropertyNames().stream()
+                .filter(key -> !key.startsWith(FILE_PREFIX) && !liveHashes.contains(key.substring(0, key.indexOf('.'))))
+                .forEach(index::remove);
+        try {
+            Path temp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), ".extension-index", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                index.store(out, "Plugin extension index - safe to delete, it is rebuilt on the next load");
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            log.debug("{}Saved plugin extension index for {} jars", logPrefix, liveHashes.size());
+        }
+        catch (IOException ex) {
+            log.warn("{}Could not save plugin extension index {}", logPrefix, indexFile, ex);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private String extensionKey(String jarHash, String extensionType) {
+        return jarHash + ".extensions." + (extensionType == null ? ALL_EXTENSIONS : extensionType);
+    }
+
+    private void putIfSet(String key, String value) {
+        if (value == null) {
+            index.remove(key);
+        }
+        else {
+            index.setProperty(key, value);
+        }
+    }
+
+    private List<String> splitList(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *   platformconnector - PluginJobManager.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import jakarta.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs plugin start, stop, unload and load requests from the admin pages as background jobs, so that the admin request
+ * returns straight away with a job id instead of waiting on a slow plugin. Jobs for the same target run one at a time
+ * in the order they were asked for; jobs for different plugins run side by side, so draining one plugin does not hold
+ * up the others. The pf4j calls themselves are still serialised by the lifecycle lock in PluginManagement.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginJobManager {
+
+    private static final int MAX_HISTORY = 100;
+
+    @Autowired
+    private PluginManagement pluginManagement;
+
+    private final AtomicLong jobSequence = new AtomicLong(0);
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "plugin-job-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    // Last job queued for each target, so the next one for that target runs after it
+    private final Map<String, CompletableFuture<Void>> targetQueues = new HashMap<>();
+    // Plugins being upgraded, which take no lifecycle jobs until the upgrade finishes. Guarded by targetQueues
+    private final Set<String> upgrading = new HashSet<>();
+
+    private final Map<Long, PluginJob> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PluginJob> eldest) {
+            return size() > MAX_HISTORY && eldest.getValue().getFinishedAt() != null;
+        }
+    };
+
+    /**
+     * Queues a lifecycle operation.
+     *
+     * @param type the operation to run
+     * @param target the plugin id, or the file name in the plugins directory for a load
+     * @return the job, updated as it runs
+     * @throws IllegalStateException if the target is being upgraded
+     */
+    public PluginJob submit(PluginJobType type, String target) {
+        final String logPrefix = "submit() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (type == null || target == null || target.isBlank()) {
+            throw new IllegalArgumentException("Job type and target must be specified");
+        }
+        PluginJob job = new PluginJob()
+                .setJobId(jobSequence.incrementAndGet())
+                .setType(type)
+                .setTarget(target)
+                .setState(PluginJobState.QUEUED)
+                .setMessage("Waiting for earlier jobs on " + target + " to finish")
+                .setQueuedAt(Instant.now());
+        synchronized (targetQueues) {
+            if (upgrading.contains(target)) {
+                throw new IllegalStateException("Plugin " + target + " is being upgraded, try again when the upgrade has finished");
+            }
+            synchronized (jobs) {
+                jobs.put(job.getJobId(), job);
+            }
+            log.info("{}Queued job {} to {} {}", logPrefix, job.getJobId(), type, target);
+            CompletableFuture<Void> previous = targetQueues.getOrDefault(target, CompletableFuture.completedFuture(null));
+            CompletableFuture<Void> next = previous.handleAsync((r, ex) -> {
+                runJob(job);
+                return null;
+            }, executor);
+            targetQueues.put(target, next);
+            next.whenComplete((r, ex) -> {
+                synchronized (targetQueues) {
+                    targetQueues.remove(target, next);
+                }
+            });
+        }
+        return job;
+    }
+
+    /**
+     * Marks a plugin as being upgraded, so lifecycle jobs for it are refused until {@link #releaseUpgrade(String)}.
+     *
+     * @param pluginId the plugin being upgraded
+     * @throws IllegalStateException if jobs for the plugin are still queued or running
+     */
+    public void reserveForUpgrade(String pluginId) {
+        final String logPrefix = "reserveForUpgrade() - ";
+        log.trace("{}Entering Method", logPrefix);
+        synchronized (targetQueues) {
+            if (targetQueues.containsKey(pluginId)) {
+                throw new IllegalStateException("Plugin " + pluginId + " has lifecycle jobs pending, try again when they have finished");
+            }
+            upgrading.add(pluginId);
+        }
+    }
+
+    public void releaseUpgrade(String pluginId) {
+        synchronized (targetQueues) {
+            upgrading.remove(pluginId);
+        }
+    }
+
+    public PluginJob getJob(long jobId) {
+        synchronized (jobs) {
+            return jobs.get(jobId);
+        }
+    }
+
+    public List<PluginJob> getJobs() {
+        synchronized (jobs) {
+            List<PluginJob> jobList = new ArrayList<>(jobs.values());
+            // Most recent first
+            Collections.reverse(jobList);
+            return jobList;
+        }
+    }
+
+    public boolean hasActiveJobs() {
+        synchronized (jobs) {
+            return jobs.values().stream().anyMatch(job -> job.getFinishedAt() == null);
+        }
+    }
+
+    private void runJob(PluginJob job) {
+        final String logPrefix = "runJob() - [" + job.getJobId() + "] - ";
+        log.trace("{}Entering Method", logPrefix);
+        job.setStartedAt(Instant.now())
+                .setState(PluginJobState.RUNNING)
+                .setMessage(switch (job.getType()) {
+                    case START -> "Starting plugin";
+                    case STOP -> "Waiting for running requests to finish, then stopping plugin";
+                    case UNLOAD -> "Waiting for running requests to finish, then unloading plugin";
+                    case LOAD -> "Loading plugin file";
+                });
+        try {
+            boolean success = switch (job.getType()) {
+                case START -> pluginManagement.startPlugin(job.getTarget());
+                case STOP -> pluginManagement.stopPlugin(job.getTarget());
+                case UNLOAD -> pluginManagement.unloadPlugin(job.getTarget());
+                case LOAD -> pluginManagement.loadPlugin(job.getTarget());
+            };
+            RegisteredPlugin rp = (job.getType() == PluginJobType.LOAD ? null : pluginManagement.getPluginByName(job.getTarget()));
+            String state = (rp == null ? (job.getType() == PluginJobType.UNLOAD && success ? "UNLOADED" : null) : rp.getState());
+            job.setState(success ? PluginJobState.SUCCEEDED : PluginJobState.FAILED)
+                    .setMessage(success ? "Done" + (state == null ? "" : ", plugin is " + state) : "Plugin " + job.getTarget() + " did not " + job.getType().name().toLowerCase() + (state == null ? "" : ", plugin is " + state));
+            log.info("{}Job to {} {} finished, success: {}", logPrefix, job.getType(), job.getTarget(), success);
+        }
+        catch (Exception ex) {
+            log.error("{}Job to {} {} failed", logPrefix, job.getType(), job.getTarget(), ex);
+            job.setState(PluginJobState.FAILED).setMessage(ex.getMessage());
+        }
+        finally {
+            job.setFinishedAt(Instant.now());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public enum PluginJobType {
+        START, STOP, UNLOAD, LOAD
+    }
+
+    public enum PluginJobState {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class PluginJob {
+
+        private long jobId;
+        private PluginJobType type;
+        private String target;
+        private volatile PluginJobState state;
+        private volatile String message;
+        private Instant queuedAt;
+        private volatile Instant startedAt;
+        private volatile Instant finishedAt;
+
+        public Long getDurationMillis() {
+            Instant start = startedAt;
+            Instant end = finishedAt;
+            return (start == null || end == null ? null : end.toEpochMilli() - start.toEpochMilli());
+        }
+    }
+}
@@ -19,20 +19,32 @@
  */
 package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
 
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.jfr.PluginLifecycleEvent;
 import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.pf4j.PluginWrapper;
-import org.pf4j.spring.SpringPluginManager;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 /**
@@ -44,138 +56,417 @@ import org.springframework.stereotype.Component;
 public class PluginManagement {
 
     @Autowired
-    private SpringPluginManager pluginManager;
+    private ContainerPluginManager pluginManager;
 
     @Autowired
     private PluginCallback pluginCallback;
 
-    private final Map<String, RegisteredPlugin> pluginMap = new HashMap<>();
+    @Autowired
+    private PluginSecretCache secretCache;
+
+    @Autowired
+    private PluginDataSourceService dataSourceService;
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${plugin.stop.drain-timeout:30000}")
+    private Long drainTimeout;
+
+    @Value("${server.shutdown.readiness-delay:5000}")
+    private Long readinessDelay;
+
+    // Read on every request without locking; the monitor only guards updates that touch more than one entry
+    private final Map<String, RegisteredPlugin> pluginMap = new ConcurrentHashMap<>();
+    // Serialises start, stop, load and unload, which pf4j does not make thread safe, without blocking request lookups
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    private final Map<String, RegisteredPlugin> routeOverrides = new HashMap<>();
+
+    // Bumped whenever the set of plugins, components or metrics changes, so that monitoring can cache discovery output
+    private final AtomicLong discoveryVersion = new AtomicLong(1);
+    private volatile Map<String, String> lastDiscoveryShapes = new HashMap<>();
+
+    @PostConstruct
+    public void registerListener() {
+        // Covers plugins that finish starting after the boot stopped waiting for them, which no admin call announces
+        pluginManager.addPluginStateListener(event -> {
+            if (event.getPluginState() != event.getOldState()) {
+                bumpDiscoveryVersion("Plugin " + event.getPlugin().getPluginId() + " is now " + event.getPluginState());
+            }
+        });
+    }
 
     @PostConstruct
-    public synchronized Map<String, RegisteredPlugin> getAllPlugins() {
+    public Map<String, RegisteredPlugin> getAllPlugins() {
         final String logPrefix = "getAllPlugins() - ";
         log.trace("{}Entering Method", logPrefix);
         pluginCallback.setPluginManagement(this);
-        log.debug("{}Getting all registered plugins", logPrefix);
-        pluginMap.clear();
-        for (PluginWrapper plug : pluginManager.getPlugins()) {
-            String pluginId = plug.getPluginId();
-            log.trace("{}Evaluating plugin {}", logPrefix, pluginId);
-            List<PlatformConnectorPlugin> pcpList = pluginManager.getExtensions(PlatformConnectorPlugin.class, pluginId);
-            PlatformConnectorPlugin pcp = null;
-            if (pcpList.size() != 1) {
-                log.warn("{}Plugin {} has more than one extension of type PlatformConnectorPlugin. This plugin will not be usable: {}", logPrefix, pcpList);
-            }
-            else {
-                pcp = pcpList.get(0);
+        dataSourceService.setPluginManagement(this);
+        // While a lifecycle operation holds the plugin manager, show the registry as it stands rather than wait for it
+        if (!lifecycleLock.tryLock()) {
+            log.debug("{}Lifecycle operation in progress, returning current registry", logPrefix);
+            return pluginMap;
+        }
+        try {
+            log.debug("{}Getting all registered plugins", logPrefix);
+            Map<String, RegisteredPlugin> current = new HashMap<>();
+            for (PluginWrapper plug : pluginManager.getPlugins()) {
+                String pluginId = plug.getPluginId();
+                log.trace("{}Evaluating plugin {}", logPrefix, pluginId);
+                List<PlatformConnectorPlugin> pcpList = pluginManager.getExtensions(PlatformConnectorPlugin.class, pluginId);
+                PlatformConnectorPlugin pcp = null;
+                if (pcpList.size() != 1) {
+                    log.warn("{}Plugin {} has more than one extension of type PlatformConnectorPlugin. This plugin will not be usable: {}", logPrefix, pcpList);
+                }
+                else {
+                    pcp = pcpList.get(0);
+                }
+                current.put(pluginId, toRegisteredPlugin(plug, pcp));
+                if (pcp != null) {
+                    log.trace("{}Setting callback interface to plugin", logPrefix);
+                    pcp.setContainerInterface(pluginCallback);
+                }
             }
-            RegisteredPlugin rp = new RegisteredPlugin()
-                    .setId(pluginId)
-                    .setPlugin(pcp)
-                    .setHealth(pcp == null ? new HealthResult().setOverallStatus(new HealthStatus().setHealthComment("Plugin Module not Loaded").setHealthState(HealthState.UNKNOWN)) : pcp.getPluginHealth())
-                    .setDescription(plug.getDescriptor().getPluginDescription())
-                    .setVersion(plug.getDescriptor().getVersion())
-                    .setCls(plug.getDescriptor().getPluginClass())
-                    .setProvider(plug.getDescriptor().getProvider())
-                    .setState(plug.getPluginState().name())
-                    .setSourceAvailable(pcp != null && pcp.isSourceAvailable());
-            pluginMap.put(pluginId, rp);
-            if (pcp != null) {
-                log.trace("{}Setting callback interface to plugin", logPrefix);
-                pcp.setContainerInterface(pluginCallback);
+            pluginManager.saveExtensionIndex();
+
+            synchronized (this) {
+                // A plugin part way through an upgrade keeps serving from its staged instance until the upgrade switches back
+                current.putAll(routeOverrides);
+                // Entries are replaced in place rather than cleared first, so a lookup never finds a running plugin missing
+                pluginMap.putAll(current);
+                pluginMap.keySet().retainAll(current.keySet());
             }
         }
+        finally {
+            lifecycleLock.unlock();
+        }
+
+        // Plugins can change their components or metrics without pushing health through the callback
+        Map<String, String> discoveryShapes = new HashMap<>();
+        pluginMap.forEach((pluginId, rp) -> discoveryShapes.put(pluginId, rp.getState() + new TreeSet<>(PluginCallback.discoveryShape(rp.getHealth()))));
+        if (!discoveryShapes.equals(lastDiscoveryShapes)) {
+            bumpDiscoveryVersion("Plugin set, state, components or metrics changed");
+            lastDiscoveryShapes = discoveryShapes;
+        }
 
         log.info("{}Found {} registered plugins", logPrefix, pluginMap.size());
         return pluginMap;
     }
 
-    public synchronized RegisteredPlugin getPluginByName(String pluginName) {
+    private RegisteredPlugin toRegisteredPlugin(PluginWrapper plug, PlatformConnectorPlugin pcp) {
+        return new RegisteredPlugin()
+                .setId(plug.getPluginId())
+                .setPlugin(pcp)
+                .setHealth(pcp == null ? new HealthResult().setOverallStatus(new HealthStatus().setHealthComment("Plugin Module not Loaded").setHealthState(HealthState.UNKNOWN)) : pcp.getPluginHealth())
+                .setDescription(plug.getDescriptor().getPluginDescription())
+                .setVersion(plug.getDescriptor().getVersion())
+                .setCls(plug.getDescriptor().getPluginClass())
+                .setProvider(plug.getDescriptor().getProvider())
+                .setState(plug.getPluginState().name())
+                .setSourceAvailable(pcp != null && pcp.isSourceAvailable());
+    }
+
+    /**
+     * Atomically points requests for a plugin at another instance of it, loaded outside the main plugin manager. The
+     * route stays in place across registry rebuilds until {@link #clearRoute(String, PlatformConnectorPlugin)} is called.
+     *
+     * @param plug the wrapper the instance was loaded from
+     * @param pcp the instance that should receive requests from now on
+     * @return the instance that was receiving requests before the switch, or null if there was none
+     */
+    public synchronized PlatformConnectorPlugin routeTo(PluginWrapper plug, PlatformConnectorPlugin pcp) {
+        final String logPrefix = "routeTo() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String pluginId = plug.getPluginId();
+        RegisteredPlugin rp = toRegisteredPlugin(plug, pcp);
+        RegisteredPlugin previous = pluginMap.put(pluginId, rp);
+        routeOverrides.put(pluginId, rp);
+        bumpDiscoveryVersion("Plugin " + pluginId + " routed to version " + rp.getVersion());
+        log.info("{}Requests for plugin {} now go to version {}", logPrefix, pluginId, rp.getVersion());
+        return (previous == null ? null : previous.getPlugin());
+    }
+
+    /**
+     * Removes a route set by {@link #routeTo(PluginWrapper, PlatformConnectorPlugin)}, so requests go back to the
+     * instance held by the main plugin manager. If the main plugin manager does not have the plugin, the route is
+     * kept so requests are not left with nothing to serve them.
+     *
+     * @param pluginId the plugin to switch back
+     * @param pcp the instance from the main plugin manager that should receive requests, usually the one just warmed up
+     * @return the instance that was receiving requests before the switch, or null if there was none or the route was
+     * kept
+     */
+    public synchronized PlatformConnectorPlugin clearRoute(String pluginId, PlatformConnectorPlugin pcp) {
+        final String logPrefix = "clearRoute() - ";
+        log.trace("{}Entering Method", logPrefix);
+        PluginWrapper plug = pluginManager.getPlugin(pluginId);
+        if (plug == null || pcp == null || pcp.getClass().getClassLoader() != plug.getPluginClassLoader()) {
+            log.warn("{}Plugin {} is not in the main plugin manager, keeping its current route", logPrefix, pluginId);
+            return null;
+        }
+        pcp.setContainerInterface(pluginCallback);
+        // Replaced in one step, so a lookup during the switch finds either the old or the new instance
+        pluginMap.put(pluginId, toRegisteredPlugin(plug, pcp));
+        RegisteredPlugin override = routeOverrides.remove(pluginId);
+        bumpDiscoveryVersion("Plugin " + pluginId + " route cleared");
+        log.info("{}Requests for plugin {} now go to the main plugin manager", logPrefix, pluginId);
+        return (override == null ? null : override.getPlugin());
+    }
+
+    public RegisteredPlugin getPluginByName(String pluginName) {
         final String logPrefix = "getPluginByName() - ";
         log.trace("{}Entering Method", logPrefix);
         log.debug("{}Finding plugin {}", logPrefix, pluginName);
-        if (pluginMap.containsKey(pluginName)) {
-            return pluginMap.get(pluginName);
-        }
-        else {
+        RegisteredPlugin rp = pluginMap.get(pluginName);
+        if (rp == null) {
             log.error("{}Plugin {} is not registered, returning null", logPrefix, pluginName);
-            return null;
         }
+        return rp;
     }
 
-    public synchronized boolean startPlugin(String pluginName) {
+    public Set<String> getRegisteredPluginIds() {
+        return new HashSet<>(pluginMap.keySet());
+    }
+
+    /**
+     * Runs work against the plugin manager while holding the lifecycle lock, so it does not interleave with a start,
+     * stop, load or unload.
+     */
+    public <T> T withLifecycleLock(Supplier<T> action) {
+        lifecycleLock.lock();
+        try {
+            return action.get();
+        }
+        finally {
+            lifecycleLock.unlock();
+        }
+    }
+
+    public boolean startPlugin(String pluginName) {
         final String logPrefix = "startPlugin() - ";
         log.trace("{}Entering Method", logPrefix);
+        PluginLifecycleEvent event = new PluginLifecycleEvent();
+        event.begin();
         log.debug("{}Finding plugin {}", logPrefix, pluginName);
-        if (pluginMap.containsKey(pluginName)) {
+        return withLifecycleLock(() -> {
+            RegisteredPlugin rp = pluginMap.get(pluginName);
+            if (rp == null) {
+                log.warn("{}Plugin {} is not registered, not doing anything", logPrefix, pluginName);
+                return commitLifecycleEvent(event, pluginName, "START", null, false);
+            }
             log.info("{}Attempting to start {}", logPrefix, pluginName);
-            pluginMap.get(pluginName).setState(pluginManager.startPlugin(pluginName).name());
-            log.info("{}Plugin {} state {}", logPrefix, pluginName, pluginMap.get(pluginName).getState());
-            return pluginMap.get(pluginName).getState().equalsIgnoreCase("STARTED");
-        }
-        else {
-            log.warn("{}Plugin {} is not registered, not doing anything", logPrefix, pluginName);
-            return false;
-        }
+            rp.setState(pluginManager.startPlugin(pluginName).name());
+            bumpDiscoveryVersion("Plugin " + pluginName + " started");
+            log.info("{}Plugin {} state {}", logPrefix, pluginName, rp.getState());
+            return commitLifecycleEvent(event, pluginName, "START", rp.getState(), rp.getState().equalsIgnoreCase("STARTED"));
+        });
     }
 
-    public synchronized boolean stopPlugin(String pluginName) {
+    public boolean stopPlugin(String pluginName) {
         final String logPrefix = "stopPlugin() - ";
         log.trace("{}Entering Method", logPrefix);
+        PluginLifecycleEvent event = new PluginLifecycleEvent();
+        event.begin();
         log.debug("{}Finding plugin {}", logPrefix, pluginName);
-        if (pluginMap.containsKey(pluginName)) {
-            log.info("{}Attempting to stop {}", logPrefix, pluginName);
-            pluginMap.get(pluginName).setState(pluginManager.stopPlugin(pluginName).name());
-            log.info("{}Plugin {} state {}", logPrefix, pluginName, pluginMap.get(pluginName).getState());
-            return pluginMap.get(pluginName).getState().equalsIgnoreCase("STOPPED");
-        }
-        else {
+        if (!pluginMap.containsKey(pluginName)) {
             log.warn("{}Plugin {} is not registered, not doing anything", logPrefix, pluginName);
-            return false;
+            return commitLifecycleEvent(event, pluginName, "STOP", null, false);
+        }
+        // Drain before taking the lifecycle lock, so other lifecycle work is not held up while this plugin finishes
+        drainPlugin(pluginName);
+        try {
+            return withLifecycleLock(() -> {
+                RegisteredPlugin rp = pluginMap.get(pluginName);
+                if (rp == null) {
+                    log.warn("{}Plugin {} was unloaded while draining, not doing anything", logPrefix, pluginName);
+                    return commitLifecycleEvent(event, pluginName, "STOP", null, false);
+                }
+                log.info("{}Attempting to stop {}", logPrefix, pluginName);
+                rp.setState(pluginManager.stopPlugin(pluginName).name());
+                dataSourceService.releasePlugin(pluginName);
+                bumpDiscoveryVersion("Plugin " + pluginName + " stopped");
+                log.info("{}Plugin {} state {}", logPrefix, pluginName, rp.getState());
+                return commitLifecycleEvent(event, pluginName, "STOP", rp.getState(), rp.getState().equalsIgnoreCase("STOPPED"));
+            });
+        }
+        finally {
+            invocationTracker.openAdmission(pluginName);
         }
     }
 
-    public synchronized boolean unloadPlugin(String pluginName) {
+    public boolean unloadPlugin(String pluginName) {
         final String logPrefix = "unloadPlugin() - ";
         log.trace("{}Entering Method", logPrefix);
+        PluginLifecycleEvent event = new PluginLifecycleEvent();
+        event.begin();
         log.debug("{}Finding plugin {}", logPrefix, pluginName);
-        if (pluginMap.containsKey(pluginName)) {
-            log.info("{}Attempting to unload {}", logPrefix, pluginName);
+        if (!pluginMap.containsKey(pluginName)) {
+            log.warn("{}Plugin {} is not registered, not doing anything", logPrefix, pluginName);
+            return commitLifecycleEvent(event, pluginName, "UNLOAD", null, false);
+        }
+        drainPlugin(pluginName);
+        try {
+            return withLifecycleLock(() -> {
+                RegisteredPlugin rp = pluginMap.get(pluginName);
+                if (rp == null) {
+                    log.warn("{}Plugin {} was unloaded while draining, not doing anything", logPrefix, pluginName);
+                    return commitLifecycleEvent(event, pluginName, "UNLOAD", null, false);
+                }
+                log.info("{}Attempting to unload {}", logPrefix, pluginName);
+                if (pluginManager.unloadPlugin(pluginName)) {
+                    log.info("{}Plugin successfully unloaded", logPrefix);
+                    pluginMap.remove(pluginName);
+                    secretCache.clearPlugin(pluginName);
+                    dataSourceService.releasePlugin(pluginName);
+                    bumpDiscoveryVersion("Plugin " + pluginName + " unloaded");
+                    return commitLifecycleEvent(event, pluginName, "UNLOAD", "UNLOADED", true);
+                }
+                else {
+                    log.error("{}Plugin unload failed", logPrefix);
+                    return commitLifecycleEvent(event, pluginName, "UNLOAD", rp.getState(), false);
+                }
+            });
+        }
+        finally {
+            invocationTracker.openAdmission(pluginName);
+        }
+    }
 
-            if (pluginManager.unloadPlugin(pluginName)) {
-                log.info("{}Plugin successfully unloaded", logPrefix);
-                pluginMap.remove(pluginName);
-                return true;
+    /**
+     * Unloads the version of a plugin that an upgrade has already drained and replaced. Requests keep going to the
+     * staged copy, so admission is left open and the plugin stays registered, but everything the old version held is
+     * released the same way {@link #unloadPlugin(String)} releases it.
+     *
+     * @param pluginId the plugin being upgraded
+     * @return true if the old version was unloaded
+     */
+    public boolean unloadReplacedVersion(String pluginId) {
+        final String logPrefix = "unloadReplacedVersion() - ";
+        log.trace("{}Entering Method", logPrefix);
+        PluginLifecycleEvent event = new PluginLifecycleEvent();
+        event.begin();
+        return withLifecycleLock(() -> {
+            PluginWrapper pw = pluginManager.getPlugin(pluginId);
+            if (pw == null) {
+                log.warn("{}Plugin {} is not loaded, not doing anything", logPrefix, pluginId);
+                return commitLifecycleEvent(event, pluginId, "UNLOAD", null, false);
             }
-            else {
+            ClassLoader oldLoader = pw.getPluginClassLoader();
+            log.info("{}Attempting to unload the replaced version of {}", logPrefix, pluginId);
+            if (!pluginManager.unloadPlugin(pluginId)) {
                 log.error("{}Plugin unload failed", logPrefix);
-                return false;
+                return commitLifecycleEvent(event, pluginId, "UNLOAD", pw.getPluginState().name(), false);
+            }
+            secretCache.clearPlugin(pluginId);
+            dataSourceService.releasePluginVersion(pluginId, oldLoader);
+            bumpDiscoveryVersion("Replaced version of plugin " + pluginId + " unloaded");
+            return commitLifecycleEvent(event, pluginId, "UNLOAD", "UNLOADED", true);
+        });
+    }
+
+    /**
+     * Stops new requests reaching a plugin and waits up to plugin.stop.drain-timeout for the ones already running in
+     * it to finish. Admission stays closed until the caller reopens it.
+     */
+    private void drainPlugin(String pluginName) {
+        final String logPrefix = "drainPlugin() - ";
+        log.trace("{}Entering Method", logPrefix);
+        invocationTracker.closeAdmission(pluginName);
+        try {
+            if (!invocationTracker.awaitDrained(pluginName, drainTimeout)) {
+                log.warn("{}Plugin {} still has {} requests running after {}ms, carrying on", logPrefix, pluginName, invocationTracker.getInFlightCount(pluginName), drainTimeout);
             }
         }
-        else {
-            log.warn("{}Plugin {} is not registered, not doing anything", logPrefix, pluginName);
-            return false;
+        catch (InterruptedException ex) {
+            log.warn("{}Interrupted while draining plugin {}", logPrefix, pluginName);
+            Thread.currentThread().interrupt();
         }
     }
 
-    public synchronized boolean loadPlugin(String pluginFile) {
+    public boolean loadPlugin(String pluginFile) {
         final String logPrefix = "loadPlugin() - ";
         log.trace("{}Entering Method", logPrefix);
+        PluginLifecycleEvent event = new PluginLifecycleEvent();
+        event.begin();
         log.info("{}Attempting to load {}", logPrefix, pluginFile);
         Path plugPath = Path.of("plugins/" + pluginFile);
-        String ret = pluginManager.loadPlugin(plugPath);
+        String ret = withLifecycleLock(() -> pluginManager.loadPlugin(plugPath));
         log.info("{}Load Plugin returned: {}", logPrefix, ret);
-        return true;
+        bumpDiscoveryVersion("Plugin " + ret + " loaded");
+        return commitLifecycleEvent(event, ret, "LOAD", "LOADED", true);
+    }
+
+    private boolean commitLifecycleEvent(PluginLifecycleEvent event, String pluginId, String action, String state, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.pluginId = pluginId;
+            event.action = action;
+            event.state = state;
+            event.success = success;
+            event.commit();
+        }
+        return success;
+    }
+
+    public long getDiscoveryVersion() {
+        return discoveryVersion.get();
+    }
+
+    public long bumpDiscoveryVersion(String reason) {
+        final String logPrefix = "bumpDiscoveryVersion() - ";
+        long newVersion = discoveryVersion.incrementAndGet();
+        log.debug("{}Discovery version now {}: {}", logPrefix, newVersion, reason);
+        return newVersion;
+    }
+
+    @EventListener
+    public void delayShutdown(ContextClosedEvent event) {
+        final String logPrefix = "delayShutdown() - ";
+        if (event.getApplicationContext() != applicationContext || readinessDelay <= 0) {
+            return;
+        }
+        // Spring Boot has already reported REFUSING_TRAFFIC. Keep serving until the load balancer has seen it, as the
+        // web server stops accepting connections as soon as this returns
+        log.info("{}Shutting down, waiting {}ms for the load balancer to stop sending requests", logPrefix, readinessDelay);
+        try {
+            Thread.sleep(readinessDelay);
+        }
+        catch (InterruptedException ex) {
+            log.warn("{}Interrupted while waiting to shut down", logPrefix);
+            Thread.currentThread().interrupt();
+        }
     }
 
     @PreDestroy
     public void shutdownPlugins() {
         final String logPrefix = "shutdownPlugins() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Stopping down all plugins immediately", logPrefix);
-        pluginManager.stopPlugins();
-        log.info("{}Done. Unloading all plugins", logPrefix);
-        pluginManager.unloadPlugins();
+        Set<String> pluginIds = getRegisteredPluginIds();
+        log.info("{}Draining {} plugins for up to {}ms", logPrefix, pluginIds.size(), drainTimeout);
+        // Every gate is closed before waiting on any of them, so all plugins drain at the same time against one deadline
+        pluginIds.forEach(invocationTracker::closeAdmission);
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        try {
+            for (String pluginId : pluginIds) {
+                if (!invocationTracker.awaitDrained(pluginId, Math.max(0, deadline - System.currentTimeMillis()))) {
+                    log.warn("{}Plugin {} still has {} requests running, stopping anyway", logPrefix, pluginId, invocationTracker.getInFlightCount(pluginId));
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            log.warn("{}Interrupted while draining plugins", logPrefix);
+            Thread.currentThread().interrupt();
+        }
+        withLifecycleLock(() -> {
+            log.info("{}Stopping all plugins", logPrefix);
+            pluginManager.stopPlugins();
+            log.info("{}Done. Unloading all plugins", logPrefix);
+            pluginManager.unloadPlugins();
+            return null;
+        });
         log.info("{}Finished plugin shutdown sequence", logPrefix);
         log.trace("{}Leaving Method", logPrefix);
     }
@@ -0,0 +1,140 @@
+/*
+ *   platformconnector - PluginReadinessGate.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.ContainerPluginMonitor;
+import jakarta.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+import org.pf4j.PluginState;
+import org.pf4j.PluginStateEvent;
+import org.pf4j.PluginStateListener;
+import org.pf4j.PluginWrapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the readiness state at REFUSING_TRAFFIC after boot until enough plugins have STARTED, so a load balancer
+ * watching /metrics/health/readiness only sends traffic once the node can serve it. Plugins that FAILED to start are
+ * left out of the count, and the gate opens anyway once plugin.ready.timeout has passed, so a broken or hung plugin
+ * cannot keep the node out of service. The gate only applies to startup; once it opens, stopping a plugin by hand does
+ * not take the node out of service.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginReadinessGate implements PluginStateListener, ContainerPluginMonitor {
+
+    @Autowired
+    private ContainerPluginManager pluginManager;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${plugin.ready.min-started-percent:100}")
+    private Integer minStartedPercent;
+
+    @Value("${plugin.ready.timeout:${plugin.start-timeout:60000}}")
+    private Long readyTimeout;
+
+    private volatile boolean open = false;
+    private volatile boolean applicationReady = false;
+    private volatile long readySince = 0;
+
+    @PostConstruct
+    public void registerListener() {
+        pluginManager.addPluginStateListener(this);
+    }
+
+    @EventListener
+    public synchronized void onReadinessChange(AvailabilityChangeEvent<ReadinessState> event) {
+        final String logPrefix = "onReadinessChange() - ";
+        if (event.getState() != ReadinessState.ACCEPTING_TRAFFIC || open) {
+            return;
+        }
+        if (!applicationReady) {
+            applicationReady = true;
+            readySince = System.currentTimeMillis();
+        }
+        if (!evaluate()) {
+            log.warn("{}Not enough plugins have started yet, refusing traffic until they do", logPrefix);
+            AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        }
+    }
+
+    @Override
+    public synchronized void pluginStateChanged(PluginStateEvent event) {
+        final String logPrefix = "pluginStateChanged() - ";
+        // A plugin failing to start shrinks the count it is measured against, so it can open the gate too
+        if (open || !applicationReady || (event.getPluginState() != PluginState.STARTED && event.getPluginState() != PluginState.FAILED)) {
+            return;
+        }
+        if (evaluate()) {
+            log.info("{}Plugin {} is {}, enough plugins are now running to accept traffic", logPrefix, event.getPlugin().getPluginId(), event.getPluginState());
+            AvailabilityChangeEvent.publish(applicationContext, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${plugin.ready.check-interval:5000}")
+    public synchronized void checkTimeout() {
+        final String logPrefix = "checkTimeout() - ";
+        if (open || !applicationReady || System.currentTimeMillis() - readySince < readyTimeout) {
+            return;
+        }
+        open = true;
+        log.warn("{}Plugins still not started after {}ms, accepting traffic anyway", logPrefix, readyTimeout);
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    private synchronized boolean evaluate() {
+        final String logPrefix = "evaluate() - ";
+        if (open) {
+            return true;
+        }
+        List<PluginWrapper> eligible = pluginManager.getPlugins().stream()
+                .filter(p -> p.getPluginState() != PluginState.DISABLED && p.getPluginState() != PluginState.FAILED)
+                .toList();
+        long started = eligible.stream().filter(p -> p.getPluginState() == PluginState.STARTED).count();
+        open = (started * 100 >= (long) eligible.size() * minStartedPercent);
+        log.debug("{}{} of {} plugins started, need {}%, gate open: {}", logPrefix, started, eligible.size(), minStartedPercent, open);
+        return open;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        Long duration = pluginManager.getStartDuration(plugin.getId());
+        metrics.put("container.start.duration-ms", (duration == null ? 0L : duration));
+        return metrics;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *   platformconnector - PluginSecretCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import com.slinkytoybox.gcloud.platformconnector.connection.ConfigOptionsChangedEvent;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.ContainerPluginMonitor;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded, expiring cache of values decrypted on behalf of plugins, so that a plugin reading the same secret on every
+ * connection only pays for the decrypt once. Entries are held per plugin, keyed on a SHA-256 of the ciphertext, with
+ * the plaintext in a char[] that is wiped on expiry, eviction and plugin unload.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginSecretCache implements ContainerPluginMonitor {
+
+    @Autowired
+    private PluginCallerResolver callerResolver;
+
+    @Autowired
+    private Environment env;
+
+    @Value("${plugin.decrypt-cache.enabled:true}")
+    private volatile Boolean enabled;
+
+    @Value("${plugin.decrypt-cache.ttl:600000}")
+    private volatile Long ttl;
+
+    @Value("${plugin.decrypt-cache.max-entries:256}")
+    private volatile Integer maxEntries;
+
+    private final Map<String, Map<String, CachedSecret>> pluginCaches = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> hits = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> misses = new ConcurrentHashMap<>();
+
+    public String decrypt(String encryptedText, Function<String, String> decryptor) {
+        final String logPrefix = "decrypt() - ";
+        if (!enabled || encryptedText == null || !encryptedText.startsWith("ENC")) {
+            return decryptor.apply(encryptedText);
+        }
+        String pluginId = callerResolver.findCallingPlugin();
+        String cacheKey = hash(encryptedText);
+        Map<String, CachedSecret> cache = pluginCaches.computeIfAbsent(pluginId, k -> new ConcurrentHashMap<>());
+        CachedSecret cached = cache.get(cacheKey);
+        if (cached != null) {
+            String plainText = cached.read();
+            if (plainText != null) {
+                hits.computeIfAbsent(pluginId, k -> new LongAdder()).increment();
+                return plainText;
+            }
+            cache.remove(cacheKey, cached);
+        }
+        misses.computeIfAbsent(pluginId, k -> new LongAdder()).increment();
+        String plainText = decryptor.apply(encryptedText);
+        if (plainText != null) {
+            if (cache.size() >= maxEntries) {
+                evictOldest(cache);
+            }
+            CachedSecret previous = cache.put(cacheKey, new CachedSecret(plainText, System.currentTimeMillis() + ttl));
+            if (previous != null) {
+                previous.wipe();
+            }
+            log.trace("{}Cached decrypted value for {}, {} entries", logPrefix, pluginId, cache.size());
+        }
+        return plainText;
+    }
+
+    public void clearPlugin(String pluginId) {
+        final String logPrefix = "clearPlugin() - ";
+        Map<String, CachedSecret> cache = pluginCaches.remove(pluginId);
+        if (cache != null) {
+            log.debug("{}Wiping {} cached secrets for plugin {}", logPrefix, cache.size(), pluginId);
+            cache.values().forEach(CachedSecret::wipe);
+        }
+        hits.remove(pluginId);
+        misses.remove(pluginId);
+    }
+
+    @EventListener
+    public void onConfigOptionsChanged(ConfigOptionsChangedEvent event) {
+        final String logPrefix = "onConfigOptionsChanged() - ";
+        if (!event.hasChangedPrefix("plugin.decrypt-cache.")) {
+            return;
+        }
+        enabled = env.getProperty("plugin.decrypt-cache.enabled", Boolean.class, enabled);
+        ttl = env.getProperty("plugin.decrypt-cache.ttl", Long.class, ttl);
+        maxEntries = env.getProperty("plugin.decrypt-cache.max-entries", Integer.class, maxEntries);
+        log.info("{}Decrypt cache now enabled={}, ttl={}, max entries={}", logPrefix, enabled, ttl, maxEntries);
+        if (!enabled) {
+            pluginCaches.keySet().forEach(this::clearPlugin);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${plugin.decrypt-cache.purge-interval:60000}")
+    public void purgeExpired() {
+        final String logPrefix = "purgeExpired() - ";
+        long now = System.currentTimeMillis();
+        pluginCaches.values().forEach(cache -> cache.entrySet().removeIf(e -> {
+            if (e.getValue().expiresAt <= now) {
+                e.getValue().wipe();
+                return true;
+            }
+            return false;
+        }));
+        log.trace("{}Purged expired secrets", logPrefix);
+    }
+
+    @Override
+    public Map<String, Number> getPluginMetrics(RegisteredPlugin plugin) {
+        Map<String, Number> metrics = new TreeMap<>();
+        long hitCount = sum(hits.get(plugin.getId()));
+        long missCount = sum(misses.get(plugin.getId()));
+        Map<String, CachedSecret> cache = pluginCaches.get(plugin.getId());
+        metrics.put("container.decrypt.hits", hitCount);
+        metrics.put("container.decrypt.misses", missCount);
+        metrics.put("container.decrypt.hit-rate", (hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount)));
+        metrics.put("container.decrypt.cached", (long) (cache == null ? 0 : cache.size()));
+        return metrics;
+    }
+
+    private long sum(LongAdder adder) {
+        return (adder == null ? 0L : adder.sum());
+    }
+
+    private void evictOldest(Map<String, CachedSecret> cache) {
+        cache.entrySet().stream()
+                .min((a, b) -> Long.compare(a.getValue().expiresAt, b.getValue().expiresAt))
+                .ifPresent(e -> {
+                    if (cache.remove(e.getKey(), e.getValue())) {
+                        e.getValue().wipe();
+                    }
+                });
+    }
+
+    private String hash(String encryptedText) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(encryptedText.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static class CachedSecret {
+
+        private final char[] plainText;
+        private final long expiresAt;
+        private volatile boolean wiped = false;
+
+        private CachedSecret(String plainText, long expiresAt) {
+            this.plainText = plainText.toCharArray();
+            this.expiresAt = expiresAt;
+        }
+
+        private synchronized String read() {
+            if (wiped || System.currentTimeMillis() >= expiresAt) {
+                return null;
+            }
+            return new String(plainText);
+        }
+
+        private synchronized void wipe() {
+            wiped = true;
+            Arrays.fill(plainText, '\0');
+        }
+    }
+}
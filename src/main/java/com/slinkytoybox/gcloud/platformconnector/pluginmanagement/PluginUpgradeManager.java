@@ -0,0 +1,373 @@
+/*
+ *   platformconnector - PluginUpgradeManager.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.pluginmanagement;
+
+import com.slinkytoybox.gcloud.platformconnector.monitoring.PluginInvocationTracker;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import jakarta.annotation.PreDestroy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.pf4j.PluginState;
+import org.pf4j.PluginWrapper;
+import org.pf4j.spring.SpringPluginManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Upgrades a plugin without a gap in service. pf4j cannot hold two plugins with the same id in one manager, so the new
+ * jar is first loaded, started and warmed up in a separate staging manager and requests are switched to it. Once the
+ * old version has drained it is unloaded, the new jar is loaded into the main manager, and requests are switched back
+ * to it before the staged copy is drained and thrown away.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class PluginUpgradeManager {
+
+    private static final int MAX_HISTORY = 50;
+
+    @Autowired
+    private ContainerPluginManager pluginManager;
+
+    @Autowired
+    private PluginManagement pluginManagement;
+
+    @Autowired
+    private PluginCallback pluginCallback;
+
+    @Autowired
+    private PluginCallerResolver callerResolver;
+
+    @Autowired
+    private PluginDataSourceService dataSourceService;
+
+    @Autowired
+    private PluginJobManager jobManager;
+
+    @Autowired
+    private PluginInvocationTracker invocationTracker;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${plugin.upgrade.drain-timeout:60000}")
+    private Long drainTimeout;
+
+    @Value("${plugin.upgrade.warmup-calls:3}")
+    private Integer warmupCalls;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "plugin-upgrade-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, UpgradeProgress> activeUpgrades = new ConcurrentHashMap<>();
+    private final Map<String, UpgradeProgress> upgrades = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UpgradeProgress> eldest) {
+            return size() > MAX_HISTORY && eldest.getValue().getFinishedAt() != null;
+        }
+    };
+
+    /**
+     * Queues an upgrade of a running plugin to the jar in the plugins directory.
+     *
+     * @param pluginId the plugin to upgrade
+     * @param fileName the new jar, which must not be the file the current version was loaded from
+     * @return the progress of the upgrade, updated as it runs
+     */
+    public UpgradeProgress upgrade(String pluginId, String fileName) {
+        final String logPrefix = "upgrade() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (fileName == null || fileName.isBlank()) {
+            throw new IllegalArgumentException("Filename not specified");
+        }
+        PluginWrapper current = pluginManager.getPlugin(pluginId);
+        if (current == null || current.getPluginState() != PluginState.STARTED) {
+            throw new IllegalStateException("Plugin " + pluginId + " is not running, load or start it instead");
+        }
+        // The staging manager only holds the one plugin, so pf4j dependencies in either direction cannot be kept intact
+        if (!current.getDescriptor().getDependencies().isEmpty()) {
+            throw new IllegalStateException("Plugin " + pluginId + " depends on other plugins and cannot be upgraded in place");
+        }
+        boolean required = pluginManager.getPlugins().stream()
+                .flatMap(pw -> pw.getDescriptor().getDependencies().stream())
+                .anyMatch(dep -> pluginId.equals(dep.getPluginId()));
+        if (required) {
+            throw new IllegalStateException("Other plugins depend on plugin " + pluginId + ", so it cannot be upgraded in place");
+        }
+        Path newPath = Path.of("plugins/" + fileName);
+        if (!Files.exists(newPath)) {
+            throw new IllegalArgumentException("Plugin file " + fileName + " not found");
+        }
+        if (newPath.toAbsolutePath().normalize().equals(current.getPluginPath().toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("Plugin file " + fileName + " is the version already loaded. Copy the new version in under a different name");
+        }
+
+        UpgradeProgress progress = new UpgradeProgress()
+                .setUpgradeId(UUID.randomUUID().toString())
+                .setPluginId(pluginId)
+                .setFileName(fileName)
+                .setOldVersion(current.getDescriptor().getVersion())
+                .setStage(UpgradeStage.QUEUED)
+                .setStartedAt(Instant.now());
+        if (activeUpgrades.putIfAbsent(pluginId, progress) != null) {
+            throw new IllegalStateException("An upgrade of plugin " + pluginId + " is already running");
+        }
+        try {
+            jobManager.reserveForUpgrade(pluginId);
+        }
+        catch (IllegalStateException ex) {
+            activeUpgrades.remove(pluginId);
+            throw ex;
+        }
+        synchronized (upgrades) {
+            upgrades.put(progress.getUpgradeId(), progress);
+        }
+        log.info("{}Queued upgrade {} of plugin {} from version {} to {}", logPrefix, progress.getUpgradeId(), pluginId, progress.getOldVersion(), fileName);
+        executor.submit(() -> runUpgrade(progress, current.getPluginPath(), newPath));
+        return progress;
+    }
+
+    public UpgradeProgress getUpgrade(String upgradeId) {
+        synchronized (upgrades) {
+            return upgrades.get(upgradeId);
+        }
+    }
+
+    public List<UpgradeProgress> getUpgrades() {
+        synchronized (upgrades) {
+            return new ArrayList<>(upgrades.values());
+        }
+    }
+
+    private void runUpgrade(UpgradeProgress progress, Path oldPath, Path newPath) {
+        final String logPrefix = "runUpgrade() - [" + progress.getUpgradeId() + "] - ";
+        log.trace("{}Entering Method", logPrefix);
+        String pluginId = progress.getPluginId();
+        SpringPluginManager stagingManager = null;
+        ClassLoader stagedLoader = null;
+        PlatformConnectorPlugin oldPlugin = null;
+        PlatformConnectorPlugin stagedPlugin = null;
+        boolean oldUnloaded = false;
+        try {
+            progress.advance(UpgradeStage.STAGING, "Loading " + progress.getFileName() + " alongside the running version");
+            stagingManager = new SpringPluginManager();
+            stagingManager.setApplicationContext(applicationContext);
+            callerResolver.addStagingManager(stagingManager);
+            String stagedId = stagingManager.loadPlugin(newPath);
+            if (!pluginId.equals(stagedId)) {
+                throw new IllegalArgumentException("Plugin file " + progress.getFileName() + " contains plugin " + stagedId + ", not " + pluginId);
+            }
+            PluginWrapper stagedWrapper = stagingManager.getPlugin(stagedId);
+            stagedLoader = stagedWrapper.getPluginClassLoader();
+            progress.setNewVersion(stagedWrapper.getDescriptor().getVersion());
+            if (stagingManager.startPlugin(stagedId) != PluginState.STARTED) {
+                throw new IllegalStateException("Version " + progress.getNewVersion() + " did not start");
+            }
+            stagedPlugin = getExtension(stagingManager, stagedId);
+            stagedPlugin.setContainerInterface(pluginCallback);
+
+            progress.advance(UpgradeStage.WARMING_UP, "Warming up version " + progress.getNewVersion());
+            warmUp(stagedPlugin);
+
+            progress.advance(UpgradeStage.SWITCHING, "Switching requests to version " + progress.getNewVersion());
+            oldPlugin = pluginManagement.routeTo(stagedWrapper, stagedPlugin);
+
+            progress.advance(UpgradeStage.DRAINING_OLD, "Waiting for requests on version " + progress.getOldVersion() + " to finish");
+            drain(progress, oldPlugin);
+
+            progress.advance(UpgradeStage.REPLACING, "Unloading version " + progress.getOldVersion() + " and loading version " + progress.getNewVersion() + " into the main plugin manager");
+            if (!pluginManagement.unloadReplacedVersion(pluginId)) {
+                throw new IllegalStateException("Version " + progress.getOldVersion() + " could not be unloaded");
+            }
+            oldUnloaded = true;
+            retire(progress, oldPath);
+            String loadedId = pluginManagement.withLifecycleLock(() -> pluginManager.loadPlugin(newPath));
+            if (pluginManagement.withLifecycleLock(() -> pluginManager.startPlugin(loadedId)) != PluginState.STARTED) {
+                throw new IllegalStateException("Version " + progress.getNewVersion() + " did not start in the main plugin manager");
+            }
+            PlatformConnectorPlugin mainPlugin = getExtension(pluginManager, loadedId);
+            warmUp(mainPlugin);
+
+            progress.advance(UpgradeStage.SWITCHING_BACK, "Switching requests to version " + progress.getNewVersion() + " in the main plugin manager");
+            if (pluginManagement.clearRoute(pluginId, mainPlugin) == null) {
+                throw new IllegalStateException("Requests could not be switched back to the main plugin manager");
+            }
+
+            progress.advance(UpgradeStage.DRAINING_STAGED, "Waiting for requests on the staged copy to finish");
+            drain(progress, stagedPlugin);
+            progress.setSuccess(true);
+            progress.advance(UpgradeStage.COMPLETED, "Plugin " + pluginId + " upgraded to version " + progress.getNewVersion());
+            log.info("{}Plugin {} upgraded from version {} to {}", logPrefix, pluginId, progress.getOldVersion(), progress.getNewVersion());
+        }
+        catch (Exception ex) {
+            log.error("{}Upgrade of plugin {} failed during {}", logPrefix, pluginId, progress.getStage(), ex);
+            progress.setSuccess(false);
+            if (!oldUnloaded) {
+                // The old version is still loaded, so put requests back on it and throw the staged copy away
+                if (oldPlugin != null) {
+                    if (pluginManagement.clearRoute(pluginId, oldPlugin) == null) {
+                        // Nothing to switch back to, so the staged copy has to stay
+                        stagingManager = null;
+                    }
+                    drain(progress, stagedPlugin);
+                }
+                progress.advance(UpgradeStage.FAILED, "Upgrade failed, version " + progress.getOldVersion() + " is still serving requests: " + ex.getMessage());
+            }
+            else {
+                // The staged copy is the only working version left, so it keeps serving until the upgrade is retried or the node restarts
+                stagingManager = null;
+                progress.advance(UpgradeStage.FAILED, "Upgrade failed after version " + progress.getOldVersion() + " was unloaded. Version " + progress.getNewVersion() + " is serving from the staged copy until the node restarts: " + ex.getMessage());
+            }
+        }
+        finally {
+            if (stagingManager != null) {
+                dataSourceService.releasePluginVersion(pluginId, stagedLoader);
+                stagingManager.stopPlugins();
+                stagingManager.unloadPlugins();
+                callerResolver.removeStagingManager(stagingManager);
+            }
+            progress.setFinishedAt(Instant.now());
+            activeUpgrades.remove(pluginId);
+            jobManager.releaseUpgrade(pluginId);
+            pluginManagement.bumpDiscoveryVersion("Plugin " + pluginId + " upgrade finished");
+        }
+    }
+
+    private PlatformConnectorPlugin getExtension(SpringPluginManager manager, String pluginId) {
+        List<PlatformConnectorPlugin> pcpList = manager.getExtensions(PlatformConnectorPlugin.class, pluginId);
+        if (pcpList.size() != 1) {
+            throw new IllegalStateException("Plugin " + pluginId + " has " + pcpList.size() + " extensions of type PlatformConnectorPlugin, expected 1");
+        }
+        PlatformConnectorPlugin pcp = pcpList.get(0);
+        pcp.setContainerInterface(pluginCallback);
+        return pcp;
+    }
+
+    private void warmUp(PlatformConnectorPlugin plugin) {
+        // Health checks make the plugin open its connections and load its classes before it sees real requests
+        for (int i = 0; i < warmupCalls; i++) {
+            HealthResult health = plugin.getPluginHealth();
+            if (health != null && health.getOverallStatus() != null && health.getOverallStatus().getHealthState() == HealthState.FAILED) {
+                throw new IllegalStateException("Plugin reported FAILED health during warm-up: " + health.getOverallStatus().getHealthComment());
+            }
+        }
+    }
+
+    private void drain(UpgradeProgress progress, PlatformConnectorPlugin plugin) {
+        final String logPrefix = "drain() - [" + progress.getUpgradeId() + "] - ";
+        if (plugin == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        try {
+            // A request that looked up this version before the switch but registers afterwards sees the new route
+            // and moves to it, so everything still to run here is already counted
+            int inFlight;
+            while ((inFlight = invocationTracker.getInFlightCount(plugin.getClass().getClassLoader())) > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("{}{} requests still running after {}ms, carrying on", logPrefix, inFlight, drainTimeout);
+                    progress.addMessage(inFlight + " requests were still running after " + drainTimeout + "ms and may fail");
+                    return;
+                }
+                Thread.sleep(100);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while draining requests", ex);
+        }
+    }
+
+    private void retire(UpgradeProgress progress, Path oldPath) {
+        final String logPrefix = "retire() - [" + progress.getUpgradeId() + "] - ";
+        // Both jars carry the same plugin id, so the old one must not be picked up again on the next boot
+        if (oldPath == null || !Files.isRegularFile(oldPath)) {
+            return;
+        }
+        Path retired = oldPath.resolveSibling(oldPath.getFileName() + ".replaced");
+        try {
+            Files.move(oldPath, retired, StandardCopyOption.REPLACE_EXISTING);
+            progress.addMessage("Renamed " + oldPath.getFileName() + " to " + retired.getFileName());
+        }
+        catch (Exception ex) {
+            log.warn("{}Unable to rename {}, remove it before the next restart", logPrefix, oldPath, ex);
+            progress.addMessage("Unable to rename " + oldPath.getFileName() + ", remove it before the next restart: " + ex.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public enum UpgradeStage {
+        QUEUED, STAGING, WARMING_UP, SWITCHING, DRAINING_OLD, REPLACING, SWITCHING_BACK, DRAINING_STAGED, COMPLETED, FAILED
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class UpgradeProgress {
+
+        private String upgradeId;
+        private String pluginId;
+        private String fileName;
+        private String oldVersion;
+        private String newVersion;
+        private volatile UpgradeStage stage;
+        private Instant startedAt;
+        private volatile Instant finishedAt;
+        private volatile Boolean success;
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+
+        UpgradeProgress addMessage(String message) {
+            messages.add(Instant.now() + " " + message);
+            return this;
+        }
+
+        UpgradeProgress advance(UpgradeStage newStage, String message) {
+            stage = newStage;
+            return addMessage(message);
+        }
+    }
+}
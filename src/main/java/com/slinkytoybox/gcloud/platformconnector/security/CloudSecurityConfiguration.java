@@ -24,25 +24,37 @@ import com.mypurecloud.sdk.v2.api.IntegrationsApi;
 import com.mypurecloud.sdk.v2.model.Credential;
 import com.mypurecloud.sdk.v2.model.CredentialInfo;
 import com.mypurecloud.sdk.v2.model.CredentialType;
+import com.slinkytoybox.gcloud.platformconnector.cluster.LeaderElection;
 import com.slinkytoybox.gcloud.platformconnector.connection.CloudDatabaseConnection;
+import com.slinkytoybox.gcloud.platformconnector.connection.ClusterPeerClient;
+import com.slinkytoybox.gcloud.platformconnector.connection.ClusterPeerClient.PeerResult;
 import com.slinkytoybox.gcloud.platformconnector.connection.GCloudAPIConnection;
+import com.slinkytoybox.gcloud.platformconnector.connection.LocalConfigSnapshot;
+import com.slinkytoybox.gcloud.platformconnector.init.StartupCoordinator;
+import com.slinkytoybox.gcloud.platformconnector.monitoring.jfr.SecureKeyEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.jasypt.digest.StandardStringDigester;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -60,13 +72,54 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class CloudSecurityConfiguration {
 
+    private static final int ACTIVATE_ATTEMPTS = 3;
+    private static final long ACTIVATE_RETRY_DELAY = 1000;
+
     @Autowired
     private CloudDatabaseConnection cdc;
 
     @Autowired
     private GCloudAPIConnection cloudApi;
 
-    private String securePassword = null;
+    @Autowired
+    private ClusterPeerClient peerClient;
+
+    @Autowired
+    private LeaderElection leaderElection;
+
+    @Autowired
+    private LocalConfigSnapshot snapshot;
+
+    @Autowired
+    private StartupCoordinator startupCoordinator;
+
+    // Current and previous keys are swapped together so a request never sees a half-rotated pair
+    private final AtomicReference<Credentials> credentials = new AtomicReference<>(new Credentials(null, null, Instant.EPOCH));
+
+    @Value("${cloud.password.grace-period:300000}")
+    private Long gracePeriod;
+
+    private volatile LocalDateTime keyVersion = null;
+    private volatile long lastClusterSync = 0;
+    private volatile long lastPasswordCheck = 0;
+    private volatile String stalePendingKey = null;
+    // Our own rotation that reached Genesys Cloud but could not be activated in the database
+    private volatile String ownPendingKey = null;
+
+    @Value("${cloud.password.pending-timeout:300000}")
+    private Long pendingTimeout;
+
+    @Value("${cloud.password.poll-interval:120000}")
+    private Long pollInterval;
+
+    @Value("${cloud.password.poll-max-interval:600000}")
+    private Long pollMaxInterval;
+
+    private long pollBackoff = 1;
+    private volatile int pollsToSkip = 0;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @Value("${cloud.credential.id:NOT_SET}")
     private String credentialId;
@@ -78,68 +131,251 @@ public class CloudSecurityConfiguration {
     private PlatformEncryption encryptor;
 
     @PostConstruct
-    @Scheduled(fixedDelayString = "120000", initialDelayString = "60000")
+    public void registerMetrics() {
+        Gauge.builder("platformconnector.securekey.poll.interval", this, c -> c.pollBackoff * c.pollInterval)
+                .description("Current secure key poll interval in milliseconds, after backing off")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void initialisePassword() {
+        final String logPrefix = "initialisePassword() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // Key checks and rotation both need the staging columns, so stop the boot rather than let them fail on every poll
+        startupCoordinator.submit("secure key schema", true, this::checkKeySchema);
+        String cachedKey = snapshot.getSecureKey();
+        if (cachedKey != null && snapshot.getSecureKeyVersion() != null) {
+            // An unchanged key version in the database then costs no decrypt when the background check runs
+            setCurrentPassword(cachedKey);
+            keyVersion = snapshot.getSecureKeyVersion();
+            log.info("{}Using secure key version {} from the local snapshot, checking the database in the background", logPrefix, keyVersion);
+            snapshot.reconcile("secure key", this::checkPasswordChanged);
+            return;
+        }
+        // Only needs the platform id, so it can run while Genesys Cloud authenticates and plugins load
+        startupCoordinator.submit("secure key", true, () -> {
+            ReadKeyStatus result = checkPasswordChanged();
+            String currentPassword = getCurrentPassword();
+            // checkPasswordChanged() reports problems as a status, so fail the critical task here rather than serve with no key
+            if (currentPassword == null || currentPassword.isEmpty()) {
+                throw new IllegalStateException("No secure key available after startup key check, result " + result);
+            }
+        });
+    }
+
+    private void checkKeySchema() {
+        final String logPrefix = "checkKeySchema() - ";
+        log.trace("{}Entering Method", logPrefix);
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            for (String column : new String[]{"PendingKey", "PendingSince"}) {
+                try (ResultSet rs = dbConnection.getMetaData().getColumns(null, null, "INT_SECURE_KEY", column)) {
+                    if (!rs.next()) {
+                        log.error("{}Column INT_SECURE_KEY.{} does not exist. Run sql/upgrade-secure-key-staging.sql against the database", logPrefix, column);
+                        throw new IllegalStateException("Column INT_SECURE_KEY." + column + " does not exist, run sql/upgrade-secure-key-staging.sql");
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            throw new IllegalStateException("Could not check the INT_SECURE_KEY columns", ex);
+        }
+    }
+
     public ReadKeyStatus checkPasswordChanged() {
-        final String logPrefix = "checkPasswordChanged() - ";
+        SecureKeyEvent event = new SecureKeyEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        lastPasswordCheck = System.currentTimeMillis();
+        ReadKeyStatus result = readPasswordFromDatabase();
+        String pendingKey = stalePendingKey;
+        stalePendingKey = null;
+        // Only the leader rolls an abandoned rotation forward
+        if (pendingKey != null && (!leaderElection.isEnabled() || leaderElection.isLeader())) {
+            if (recoverPendingRotation(pendingKey)) {
+                result = ReadKeyStatus.ROTATED;
+            }
+        }
+        Timer.builder("platformconnector.securekey.poll")
+                .description("Time taken to check the secure key for changes")
+                .tag("result", result.name())
+                .register(meterRegistry)
+                .record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        updatePollBackoff(result);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "CHECK";
+            event.result = result.name();
+            event.commit();
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelayString = "${cloud.password.poll-interval:120000}", initialDelayString = "60000")
+    public void pollPasswordChanged() {
+        final String logPrefix = "pollPasswordChanged() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // While gossip is exchanging key versions with peers, followers only need an occasional safety check
+        long now = System.currentTimeMillis();
+        if (now - lastClusterSync < pollInterval && now - lastPasswordCheck < pollMaxInterval && !leaderElection.isLeader()) {
+            log.trace("{}Cluster gossip is active, skipping database poll", logPrefix);
+            return;
+        }
+        if (pollsToSkip > 0) {
+            pollsToSkip--;
+            log.trace("{}Key unchanged recently, backing off. {} more polls to skip", logPrefix, pollsToSkip);
+            return;
+        }
+        checkPasswordChanged();
+    }
+
+    private synchronized void updatePollBackoff(ReadKeyStatus result) {
+        final String logPrefix = "updatePollBackoff() - ";
+        if (result == ReadKeyStatus.PASSWORD_NOT_CHANGED) {
+            pollBackoff = Math.min(pollBackoff * 2, Math.max(1, pollMaxInterval / pollInterval));
+        }
+        else {
+            // A change or a failed read both mean the key should be checked again at the normal rate
+            pollBackoff = 1;
+        }
+        pollsToSkip = (int) pollBackoff - 1;
+        log.debug("{}Key check returned {}, next poll in {}ms", logPrefix, result, pollBackoff * pollInterval);
+    }
+
+    private ReadKeyStatus readPasswordFromDatabase() {
+        final String logPrefix = "readPasswordFromDatabase() - ";
         log.trace("{}Entering Method", logPrefix);
-        String keySql = "SELECT SecureKey, LastUpdated FROM INT_SECURE_KEY WHERE CloudPlatformId=?";
+        String keySql = "SELECT SecureKey, LastUpdated, PendingKey, "
+                + "CASE WHEN PendingKey IS NOT NULL AND PendingSince < DATEADD(MILLISECOND, -?, GETDATE()) THEN 1 ELSE 0 END AS PendingStale "
+                + "FROM INT_SECURE_KEY WHERE CloudPlatformId=?";
         String tempSecurePassword = "";
         Long cloudPlatformId = cloudApi.getCloudPlatform().getId();
         LocalDateTime lastUpdated = LocalDateTime.MIN;
         ReadKeyStatus result;
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(keySql)) {
-                ps.setLong(1, cloudPlatformId);
+                ps.setLong(1, pendingTimeout);
+                ps.setLong(2, cloudPlatformId);
                 try (ResultSet rs = ps.executeQuery()) {
                     log.info("{}Getting key from Database", logPrefix);
                     while (rs.next()) {
-
-                        String encPassword = rs.getNString("SecureKey");
-                        log.trace("{}Decrypting DB password", logPrefix);
-                        tempSecurePassword = encryptor.decrypt(encPassword);
+                        if (rs.getInt("PendingStale") == 1) {
+                            log.warn("{}Found a staged key older than {}ms, a rotation did not complete", logPrefix, pendingTimeout);
+                            stalePendingKey = rs.getNString("PendingKey");
+                        }
+                        String ownPending = ownPendingKey;
+                        if (ownPending != null) {
+                            if (ownPending.equals(rs.getNString("PendingKey"))) {
+                                // Genesys Cloud already sends our staged key, so SecureKey is the one that is out of date
+                                log.debug("{}Our staged key has not been activated yet, keeping it", logPrefix);
+                                return ReadKeyStatus.PASSWORD_NOT_CHANGED;
+                            }
+                            ownPendingKey = null;
+                        }
                         lastUpdated = (rs.getTimestamp("LastUpdated") == null ? LocalDateTime.MIN : rs.getTimestamp("LastUpdated").toLocalDateTime());
-                        if (tempSecurePassword.equals(securePassword)) {
+                        // LastUpdated is the key version, only pay for the decrypt when it has moved
+                        if (getCurrentPassword() != null && lastUpdated != LocalDateTime.MIN && lastUpdated.equals(keyVersion)) {
+                            log.trace("{}Key version {} has not changed, exiting", logPrefix, keyVersion);
+                            snapshot.confirmSecureKey(keyVersion);
+                            return ReadKeyStatus.PASSWORD_NOT_CHANGED;
+                        }
+                        String encPassword = (rs.getNString("SecureKey") == null ? "" : rs.getNString("SecureKey"));
+                        log.trace("{}Key version changed from {} to {}, decrypting DB password", logPrefix, keyVersion, lastUpdated);
+                        meterRegistry.counter("platformconnector.securekey.decrypt").increment();
+                        tempSecurePassword = encryptor.decrypt(encPassword);
+                        if (tempSecurePassword.equals(getCurrentPassword())) {
                             log.trace("{}Password has not changed, exiting", logPrefix);
+                            keyVersion = lastUpdated;
+                            snapshot.saveSecureKey(tempSecurePassword, lastUpdated);
                             return ReadKeyStatus.PASSWORD_NOT_CHANGED;
                         }
                     }
                 }
             }
-             catch (Exception ex) {
-            log.error("{}Exception encountered reading password", logPrefix, ex);
-            tempSecurePassword = "";
-        }
+            catch (Exception ex) {
+                // A failed query (for example a missing column) says nothing about the key, so keep the one in use
+                log.error("{}Exception encountered reading password - NOT MODIFYING EXISTING PASSWORD", logPrefix, ex);
+                return ReadKeyStatus.ERROR;
+            }
         }
         catch (Exception ex) {
             log.error("{}Exception encountered getting database connection - NOT MODIFYING EXISTING PASSWORD", logPrefix, ex);
-            return ReadKeyStatus.PASSWORD_NOT_CHANGED;
+            return ReadKeyStatus.ERROR;
         }
         
         result = ReadKeyStatus.PASSWORD_UPDATED;
+        // Only reached when the query ran, so an empty result means there is genuinely no usable key row
         if (tempSecurePassword.isEmpty() || lastUpdated == LocalDateTime.MIN) {
-            log.warn("{}Password was not retrieved. Forcing a rotate", logPrefix);
+            log.warn("{}No key stored for this platform. Forcing a rotate", logPrefix);
             RotateStatus status = rotatePassword();
             if (status != RotateStatus.FAILURE) {
                 result = ReadKeyStatus.ROTATED;
             }
         }
 
-        securePassword = tempSecurePassword;
+        if (result == ReadKeyStatus.ROTATED) {
+            // rotatePassword() has already set the new password and cleared the key version
+            log.trace("{}Leaving method", logPrefix);
+            return result;
+        }
+
+        if (getCurrentPassword() != null) {
+            Duration changeLatency = Duration.between(lastUpdated, LocalDateTime.now());
+            if (!changeLatency.isNegative()) {
+                Timer.builder("platformconnector.securekey.change.latency")
+                        .description("Time between the secure key changing in the database and this node picking it up")
+                        .register(meterRegistry)
+                        .record(changeLatency);
+            }
+        }
+        setCurrentPassword(tempSecurePassword);
+        keyVersion = lastUpdated;
+        snapshot.saveSecureKey(tempSecurePassword, lastUpdated);
 
-        log.debug("{}Using password: {}", logPrefix, securePassword);
+        log.debug("{}Using password: {}", logPrefix, getCurrentPassword());
         log.trace("{}Leaving method", logPrefix);
         return result;
     }
 
     @Scheduled(cron = "${cloud.password.rotate-cron}")
+    public void scheduledRotatePassword() {
+        // Only the leader rotates on schedule. Everyone else picks the new key up from the leader
+        leaderElection.runAsLeader("password rotation", token -> rotatePassword(token < 0 ? null : token));
+    }
+
     public RotateStatus rotatePassword() {
-        final String logPrefix = "rotatePassword() - ";
+        return rotatePassword(null);
+    }
+
+    private RotateStatus rotatePassword(Long fencingToken) {
+        SecureKeyEvent event = new SecureKeyEvent();
+        event.begin();
+        RotateStatus result = rotateAndNotify(fencingToken);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "ROTATE";
+            event.result = result.name();
+            event.commit();
+        }
+        return result;
+    }
+
+    private RotateStatus rotateAndNotify(Long fencingToken) {
+        final String logPrefix = "rotateAndNotify() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Rotating cloud password", logPrefix);
         String tempSecurePassword = generateSecurePassword();
 
-        if (savePassword(tempSecurePassword)) {
-            securePassword = tempSecurePassword;
+        if (savePassword(tempSecurePassword, fencingToken)) {
+            setCurrentPassword(tempSecurePassword);
+            if (ownPendingKey != null) {
+                // The database still holds the old key, so peers told to read it now would only pick that up. They
+                // are told once the staged key is rolled forward
+                log.error("{}New key is in use but not activated in the database. Other hosts were not notified", logPrefix);
+                snapshot.saveSecureKey(tempSecurePassword, keyVersion);
+                return RotateStatus.ERROR_NOTIFYING_HOSTS;
+            }
+            // LastUpdated is set by the database, so force the next check to decrypt and pick up the new version
+            keyVersion = null;
             if (!notifyOtherHosts()) {
                 log.error("{}There was an error notifying other hosts. Please check them!", logPrefix);
                 return RotateStatus.ERROR_NOTIFYING_HOSTS;
@@ -149,7 +385,7 @@ public class CloudSecurityConfiguration {
             log.warn("{}Password not updated!", logPrefix);
             return RotateStatus.FAILURE;
         }
-        log.debug("{}Using password: {}", logPrefix, securePassword);
+        log.debug("{}Using password: {}", logPrefix, getCurrentPassword());
         log.trace("{}Leaving method", logPrefix);
         return RotateStatus.SUCCESS;
     }
@@ -158,6 +394,10 @@ public class CloudSecurityConfiguration {
         final String logPrefix = "updateCloud() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Updating password in Genesys Cloud", logPrefix);
+        if (cloudApi.getApiClient() == null) {
+            log.error("{}Genesys Cloud API client is not available, cannot update the credential", logPrefix);
+            return false;
+        }
         IntegrationsApi intApi = new IntegrationsApi(cloudApi.getApiClient());
         Credential newCred = new Credential();
         newCred.setName("AutoRotated-" + LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
@@ -184,60 +424,154 @@ public class CloudSecurityConfiguration {
         }
     }
 
-    private boolean savePassword(String password) {
+    private boolean savePassword(String password, Long fencingToken) {
         final String logPrefix = "savePassword() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Saving password to Database", logPrefix);
-
-        String updateKeySql = "UPDATE INT_SECURE_KEY SET SecureKey = ?, LastUpdated = GETDATE() WHERE CloudPlatformId = ?";
-        String insertKeySql = "INSERT INTO INT_SECURE_KEY (CloudPlatformId, SecureKey, LastUpdated) VALUES (?, ?, GETDATE())";
         Long cloudPlatformId = cloudApi.getCloudPlatform().getId();
         String encryptedPassword = encryptor.encrypt(password);
 
+        // Phase 1: stage the new key, so a crash from here on can be rolled forward from the database
+        if (!stagePassword(cloudPlatformId, encryptedPassword, fencingToken)) {
+            return false;
+        }
+        // Phase 2: update Genesys Cloud with no database transaction or lock held
+        if (!updateCloud(password)) {
+            log.warn("{}Unable to update cloud, discarding staged key", logPrefix);
+            discardPendingPassword(cloudPlatformId, encryptedPassword);
+            return false;
+        }
+        // Phase 3: activate the staged key. Genesys Cloud already uses the new key, so keep it even if this fails
+        for (int attempt = 1; attempt <= ACTIVATE_ATTEMPTS; attempt++) {
+            if (activatePassword(cloudPlatformId, encryptedPassword)) {
+                ownPendingKey = null;
+                return true;
+            }
+            if (attempt < ACTIVATE_ATTEMPTS) {
+                try {
+                    Thread.sleep(ACTIVATE_RETRY_DELAY);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        log.warn("{}Genesys Cloud updated but staged key not activated. It will be rolled forward once stale", logPrefix);
+        ownPendingKey = encryptedPassword;
+        return true;
+    }
+
+    private boolean stagePassword(Long cloudPlatformId, String encryptedPassword, Long fencingToken) {
+        final String logPrefix = "stagePassword() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Staging new password in Database", logPrefix);
+        // Only one rotation may be staged at a time, unless the existing one has been abandoned
+        String stageKeySql = "UPDATE INT_SECURE_KEY SET PendingKey = ?, PendingSince = GETDATE() WHERE CloudPlatformId = ? "
+                + "AND (PendingKey IS NULL OR PendingSince < DATEADD(MILLISECOND, -?, GETDATE()))";
+        if (fencingToken != null) {
+            // A leader whose lease has since moved on must not start a rotation
+            stageKeySql += " AND EXISTS (SELECT 1 FROM INT_LEADER_LEASE WHERE LeaseName = ? AND Holder = ? AND FencingToken = ? AND ExpiresAt >= GETDATE())";
+        }
+        String insertKeySql = "INSERT INTO INT_SECURE_KEY (CloudPlatformId, SecureKey, LastUpdated, PendingKey, PendingSince) "
+                + "SELECT ?, N'', GETDATE(), ?, GETDATE() WHERE NOT EXISTS (SELECT 1 FROM INT_SECURE_KEY WHERE CloudPlatformId = ?)";
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             int rowsUpdated;
-            dbConnection.setAutoCommit(false);
-            try (PreparedStatement ps = dbConnection.prepareStatement(updateKeySql)) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(stageKeySql)) {
                 ps.setNString(1, encryptedPassword);
                 ps.setLong(2, cloudPlatformId);
+                ps.setLong(3, pendingTimeout);
+                if (fencingToken != null) {
+                    ps.setNString(4, LeaderElection.LEASE_NAME);
+                    ps.setNString(5, serverId);
+                    ps.setLong(6, fencingToken);
+                }
                 rowsUpdated = ps.executeUpdate();
                 log.trace("{}Statement issued, rows updated: {}", logPrefix, rowsUpdated);
             }
-            boolean cloudUpdateSuccess = false;
-
-            if (rowsUpdated == 1) {
-                cloudUpdateSuccess = updateCloud(password);
-            }
-            else {
+            if (rowsUpdated == 0 && fencingToken == null) {
                 try (PreparedStatement ps = dbConnection.prepareStatement(insertKeySql)) {
                     ps.setLong(1, cloudPlatformId);
                     ps.setNString(2, encryptedPassword);
+                    ps.setLong(3, cloudPlatformId);
                     rowsUpdated = ps.executeUpdate();
                     log.trace("{}Statement issued, rows inserted: {}", logPrefix, rowsUpdated);
                 }
-                if (rowsUpdated == 1) {
-                    cloudUpdateSuccess = updateCloud(password);
-                }
             }
+            if (rowsUpdated != 1) {
+                log.warn("{}Another rotation is already in progress, or leadership was lost. Not staging", logPrefix);
+                return false;
+            }
+            return true;
+        }
+        catch (Exception ex) {
+            log.error("{}Exception encountered staging password in database", logPrefix, ex);
+            return false;
+        }
+    }
 
-            if (rowsUpdated == 1 && cloudUpdateSuccess) {
-                log.info("{}Password updated in cloud, committing to database", logPrefix);
-                dbConnection.commit();
+    private boolean activatePassword(Long cloudPlatformId, String encryptedPassword) {
+        final String logPrefix = "activatePassword() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Activating staged password in Database", logPrefix);
+        String activateKeySql = "UPDATE INT_SECURE_KEY SET SecureKey = PendingKey, LastUpdated = GETDATE(), PendingKey = NULL, PendingSince = NULL "
+                + "WHERE CloudPlatformId = ? AND PendingKey = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(activateKeySql)) {
+                ps.setLong(1, cloudPlatformId);
+                ps.setNString(2, encryptedPassword);
+                int rowsUpdated = ps.executeUpdate();
+                log.trace("{}Statement issued, rows updated: {}", logPrefix, rowsUpdated);
+                if (rowsUpdated != 1) {
+                    log.error("{}Staged key was replaced before it could be activated", logPrefix);
+                    return false;
+                }
                 return true;
             }
-            else if (rowsUpdated == 1) {
-                log.warn("{}Unable to update cloud, rolling back DB", logPrefix);
-                dbConnection.rollback();
-            }
-            else {
-                log.warn("{}Unable to database correctly, rolling back DB", logPrefix);
-                dbConnection.rollback();
+        }
+        catch (Exception ex) {
+            log.error("{}Exception encountered activating password in database. It will be recovered from the staged key", logPrefix, ex);
+            return false;
+        }
+    }
+
+    private void discardPendingPassword(Long cloudPlatformId, String encryptedPassword) {
+        final String logPrefix = "discardPendingPassword() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String discardKeySql = "UPDATE INT_SECURE_KEY SET PendingKey = NULL, PendingSince = NULL WHERE CloudPlatformId = ? AND PendingKey = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(discardKeySql)) {
+                ps.setLong(1, cloudPlatformId);
+                ps.setNString(2, encryptedPassword);
+                log.trace("{}Statement issued, rows updated: {}", logPrefix, ps.executeUpdate());
             }
         }
         catch (Exception ex) {
-            log.error("{}Exception encountered updating password in database", logPrefix, ex);
+            log.error("{}Exception encountered discarding staged password. It will be recovered from the staged key", logPrefix, ex);
         }
-        return false;
+    }
+
+    private synchronized boolean recoverPendingRotation(String encryptedPassword) {
+        final String logPrefix = "recoverPendingRotation() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // We cannot tell whether Genesys Cloud received the staged key before the crash, so roll forward and send it again
+        log.warn("{}Rolling forward abandoned rotation", logPrefix);
+        String password = encryptor.decrypt(encryptedPassword);
+        if (password == null || password.isBlank()) {
+            log.error("{}Staged key could not be decrypted, discarding it", logPrefix);
+            discardPendingPassword(cloudApi.getCloudPlatform().getId(), encryptedPassword);
+            return false;
+        }
+        if (!updateCloud(password) || !activatePassword(cloudApi.getCloudPlatform().getId(), encryptedPassword)) {
+            log.error("{}Could not complete abandoned rotation, will retry on next check", logPrefix);
+            return false;
+        }
+        setCurrentPassword(password);
+        keyVersion = null;
+        if (!notifyOtherHosts()) {
+            log.error("{}There was an error notifying other hosts. Please check them!", logPrefix);
+        }
+        log.info("{}Abandoned rotation recovered", logPrefix);
+        return true;
     }
 
     private String generateSecurePassword() {
@@ -254,62 +588,76 @@ public class CloudSecurityConfiguration {
     private boolean notifyOtherHosts() {
         final String logPrefix = "notifyOtherHosts() - ";
         log.trace("{}Entering Method", logPrefix);
-        String keySql = "SELECT ServerName, ServerUrl FROM INT_SERVER WHERE ServerName != ?";
-        boolean success = true;
-        try (Connection dbConnection = cdc.getDatabaseConnection()) {
-            try (PreparedStatement ps = dbConnection.prepareStatement(keySql)) {
-                ps.setNString(1, serverId);
-                log.info("{}I am {} - Getting other servers from Database", logPrefix, serverId);
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        try {
-                            String urlString = rs.getNString("ServerUrl");
-                            String serverName = rs.getNString("ServerName");
-                            log.trace("{}serverName='{}',  urlString='{}'", logPrefix, serverName, urlString);
-                            if (urlString.isBlank() || !urlString.startsWith("http")) {
-                                log.error("{}Server {} URL is invalid: {}", logPrefix, serverName, urlString);
-                                success = false;
-                                continue;
-                            }
-                            urlString += (urlString.endsWith("/") ? "" : "/");
-                            urlString += "security/readKey";
-                            log.debug("{}Forming request for {}", logPrefix, urlString);
-                            URL url = new URL(urlString);
-                            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                            conn.setConnectTimeout(2000);
-                            conn.setReadTimeout(2000);
-                            conn.setRequestMethod("POST");
-                            conn.connect();
-                            int statusCode = conn.getResponseCode();
-                            if (statusCode != 200) {
-                                log.error("{}Received HTTP status code {} from endpoint {}", logPrefix, statusCode, serverName);
-                                success = false;
-                                continue;
-                            }
-                            BufferedReader buff = new BufferedReader(new InputStreamReader((InputStream) conn.getContent()));
-                            String response = buff.readLine();
-
-                            log.debug("{}Successfully notified {}, response {}", logPrefix, serverName, response);
-                        }
-                        catch (SQLException | IOException ex) {
-                            log.error("{}Exception encountered whilst reading or notifying a specific host!", logPrefix, ex);
-                            success = false;
-                        }
-                        log.trace("{}Moving to next record", logPrefix);
-                    }
-                }
-            }
+        Map<String, String> peers;
+        try {
+            peers = peerClient.getPeerServers();
         }
         catch (SQLException ex) {
             log.error("{}Exception encountered reading server list", logPrefix, ex);
-            success = false;
+            return false;
         }
+        Map<String, PeerResult> results = peerClient.postToPeers(peers, "security/readKey");
+        boolean success = results.values().stream().allMatch(PeerResult::isSuccess);
         log.info("{}Finished processing all servers. Overall success={}", logPrefix, success);
         return success;
     }
 
+    public LocalDateTime getKeyVersion() {
+        return keyVersion;
+    }
+
+    public void recordClusterSync() {
+        lastClusterSync = System.currentTimeMillis();
+    }
+
     public String getCurrentPassword() {
-        return securePassword;
+        return credentials.get().getCurrent();
+    }
+
+    private void setCurrentPassword(String password) {
+        final String logPrefix = "setCurrentPassword() - ";
+        Credentials updated = credentials.updateAndGet(c -> (password.equals(c.getCurrent()) ? c : new Credentials(password, c.getCurrent(), Instant.now())));
+        log.debug("{}Credentials now rotated at {}, previous key accepted until {}", logPrefix, updated.getRotatedAt(), updated.getRotatedAt().plusMillis(gracePeriod));
+    }
+
+    public KeyMatch matchAuthKey(String authKey) {
+        final String logPrefix = "matchAuthKey() - ";
+        Credentials c = credentials.get();
+        byte[] supplied = (authKey == null ? new byte[0] : authKey.getBytes(StandardCharsets.UTF_8));
+        // Always compare against both keys so the timing does not reveal which one matched
+        boolean currentMatch = constantTimeEquals(supplied, c.getCurrent());
+        boolean previousMatch = constantTimeEquals(supplied, c.getPrevious());
+        if (currentMatch) {
+            return KeyMatch.CURRENT;
+        }
+        if (previousMatch && Instant.now().isBefore(c.getRotatedAt().plusMillis(gracePeriod))) {
+            log.debug("{}Accepted previous key within the rotation grace period", logPrefix);
+            meterRegistry.counter("platformconnector.securekey.previous-key-accepted").increment();
+            return KeyMatch.PREVIOUS;
+        }
+        return KeyMatch.NONE;
+    }
+
+    private boolean constantTimeEquals(byte[] supplied, String key) {
+        if (key == null || key.isEmpty()) {
+            return false;
+        }
+        return MessageDigest.isEqual(supplied, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Credentials {
+
+        private final String current;
+        private final String previous;
+        private final Instant rotatedAt;
+    }
+
+    public enum KeyMatch {
+        CURRENT,
+        PREVIOUS,
+        NONE
     }
 
     public enum RotateStatus {
@@ -20,11 +20,28 @@
 package com.slinkytoybox.gcloud.platformconnector.security;
 
 import jakarta.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import lombok.extern.slf4j.Slf4j;
 import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
 import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
 import org.jasypt.iv.RandomIvGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
@@ -39,36 +56,93 @@ public class PlatformEncryption {
     private PooledPBEStringEncryptor encryptor;
     private final static String ENC_ALGORITHM = "PBEWithHMACSHA512AndAES_256";
 
+    // ENC2 derives an AES-GCM key from secure.key once per salt, then only pays for AES on each call
+    private final static String ENC2_KEY_ALGORITHM = "PBKDF2WithHmacSHA512";
+    private final static String ENC2_CIPHER = "AES/GCM/NoPadding";
+    private final static int ENC2_ITERATIONS = 210000;
+    private final static int ENC2_KEY_BITS = 256;
+    private final static int ENC2_SALT_BYTES = 16;
+    private final static int ENC2_NONCE_BYTES = 12;
+    private final static int ENC2_TAG_BITS = 128;
+
+    private final static String CLUSTER_MAC_ALGORITHM = "HmacSHA256";
+    private final static byte[] CLUSTER_MAC_SALT = "platformconnector-cluster-mac".getBytes(StandardCharsets.UTF_8);
+
+    private final SecureRandom random = new SecureRandom();
+    // Least recently used salts are dropped first, so a full cache never forces a re-derive of every key at once
+    private final Map<String, SecretKey> derivedKeys = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > derivedKeyCacheSize;
+        }
+    };
+    private char[] encryptionKey;
+    private byte[] localSalt;
+    private SecretKey localKey;
+    private SecretKey clusterMacKey;
+
     @Autowired
     private Environment env;
 
+    @Value("${secure.encrypt-format:ENC}")
+    private String encryptFormat;
+
+    @Value("${secure.derived-key-cache:1024}")
+    private int derivedKeyCacheSize = 1024;
+
     @PostConstruct
     private void initialiseEncryptor() {
         final String logPrefix = "initialiseEncryptor() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Setting up encryption/decryption routines", logPrefix);
-        String encryptionKey = env.getProperty("secure.key", "NOT_SET");
-        if (encryptionKey.equalsIgnoreCase("NOT_SET")) {
+        String key = env.getProperty("secure.key", "NOT_SET");
+        if (key.equalsIgnoreCase("NOT_SET")) {
             log.error("{}Encryption key is not set!", logPrefix);
             throw new IllegalArgumentException("Encryption key is not set");
         }
+        initialise(key);
+        log.info("{}New values will be encrypted with format {}", logPrefix, encryptFormat);
+        log.trace("{}Leaving Method", logPrefix);
+
+    }
+
+    void initialise(String key) {
+        final String logPrefix = "initialise() - ";
         encryptor = new PooledPBEStringEncryptor();
         encryptor.setAlgorithm(ENC_ALGORITHM);
         encryptor.setIvGenerator(new RandomIvGenerator());
-        encryptor.setPassword(encryptionKey);
+        encryptor.setPassword(key);
         encryptor.setPoolSize(4);
         encryptor.initialize();
         log.trace("{}Initialised encryptor service: {}", logPrefix, encryptor);
-        log.trace("{}Leaving Method", logPrefix);
 
+        encryptionKey = key.toCharArray();
+        synchronized (derivedKeys) {
+            derivedKeys.clear();
+        }
+        localSalt = new byte[ENC2_SALT_BYTES];
+        random.nextBytes(localSalt);
+        localKey = getDerivedKey(localSalt);
+        log.trace("{}Derived local ENC2 key", logPrefix);
+        // Every node shares secure.key, so a fixed salt gives them all the same key for signing messages to each other
+        clusterMacKey = new SecretKeySpec(getDerivedKey(CLUSTER_MAC_SALT).getEncoded(), CLUSTER_MAC_ALGORITHM);
+    }
+
+    void setEncryptFormat(String encryptFormat) {
+        this.encryptFormat = encryptFormat;
     }
 
     public String encrypt(String plainTextString) {
         final String logPrefix = "encrypt() - ";
         log.trace("{}Entering Method", logPrefix);
-        String encryptedText = encryptor.encrypt(plainTextString);
+        String encryptedText;
+        if ("ENC".equalsIgnoreCase(encryptFormat)) {
+            encryptedText = "ENC:" + encryptor.encrypt(plainTextString);
+        }
+        else {
+            encryptedText = "ENC2:" + encryptGcm(plainTextString);
+        }
         log.debug("{}Text encrypted to: {}", logPrefix, encryptedText);
-        encryptedText = "ENC:" + encryptedText;
         return encryptedText;
     }
 
@@ -80,7 +154,17 @@ public class PlatformEncryption {
             log.warn("{}Encrypted string was null or blank. Returning as-is", logPrefix);
             return encryptedString;
         }
-        if (encryptedString.startsWith("ENC:")) {
+        if (encryptedString.startsWith("ENC2:")) {
+            try {
+                plainText = decryptGcm(encryptedString.substring(5));
+            }
+            catch (GeneralSecurityException | IllegalArgumentException ex) {
+                log.error("{}Could not decrypt text. Returning null", logPrefix);
+                return null;
+            }
+            log.debug("{}Text decrypted from: {}", logPrefix, encryptedString);
+        }
+        else if (encryptedString.startsWith("ENC:")) {
             try {
                 plainText = encryptor.decrypt(encryptedString.substring(4));
             }
@@ -97,4 +181,90 @@ public class PlatformEncryption {
         return plainText;
     }
 
+    /**
+     * Signs a message sent between connector nodes with a key derived from secure.key.
+     *
+     * @param message the message body
+     * @return the Base64 HMAC of the message
+     */
+    public String sign(String message) {
+        try {
+            Mac mac = Mac.getInstance(CLUSTER_MAC_ALGORITHM);
+            mac.init(clusterMacKey);
+            return Base64.getEncoder().encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not sign message with " + CLUSTER_MAC_ALGORITHM, ex);
+        }
+    }
+
+    public boolean verify(String message, String signature) {
+        if (message == null || signature == null || signature.isBlank()) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(Base64.getDecoder().decode(sign(message)), Base64.getDecoder().decode(signature));
+        }
+        catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private String encryptGcm(String plainTextString) {
+        try {
+            byte[] nonce = new byte[ENC2_NONCE_BYTES];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance(ENC2_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, localKey, new GCMParameterSpec(ENC2_TAG_BITS, nonce));
+            byte[] cipherText = cipher.doFinal(plainTextString.getBytes(StandardCharsets.UTF_8));
+            // salt | nonce | ciphertext+tag
+            ByteBuffer bb = ByteBuffer.allocate(ENC2_SALT_BYTES + ENC2_NONCE_BYTES + cipherText.length);
+            bb.put(localSalt).put(nonce).put(cipherText);
+            return Base64.getEncoder().encodeToString(bb.array());
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not encrypt text with " + ENC2_CIPHER, ex);
+        }
+    }
+
+    private String decryptGcm(String encoded) throws GeneralSecurityException {
+        byte[] data = Base64.getDecoder().decode(encoded);
+        if (data.length < ENC2_SALT_BYTES + ENC2_NONCE_BYTES + ENC2_TAG_BITS / 8) {
+            throw new IllegalArgumentException("Encrypted text is too short");
+        }
+        byte[] salt = Arrays.copyOfRange(data, 0, ENC2_SALT_BYTES);
+        Cipher cipher = Cipher.getInstance(ENC2_CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, getDerivedKey(salt), new GCMParameterSpec(ENC2_TAG_BITS, data, ENC2_SALT_BYTES, ENC2_NONCE_BYTES));
+        byte[] plain = cipher.doFinal(data, ENC2_SALT_BYTES + ENC2_NONCE_BYTES, data.length - ENC2_SALT_BYTES - ENC2_NONCE_BYTES);
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    private SecretKey getDerivedKey(byte[] salt) {
+        final String logPrefix = "getDerivedKey() - ";
+        String saltKey = Base64.getEncoder().encodeToString(salt);
+        SecretKey key;
+        synchronized (derivedKeys) {
+            key = derivedKeys.get(saltKey);
+        }
+        if (key != null) {
+            return key;
+        }
+        // Values written by other nodes or earlier runs carry their own salt. Derive once and keep it
+        try {
+            long startTime = System.nanoTime();
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(ENC2_KEY_ALGORITHM);
+            PBEKeySpec spec = new PBEKeySpec(encryptionKey, salt, ENC2_ITERATIONS, ENC2_KEY_BITS);
+            key = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+            spec.clearPassword();
+            synchronized (derivedKeys) {
+                derivedKeys.put(saltKey, key);
+            }
+            log.debug("{}Derived ENC2 key for salt {} in {}ms", logPrefix, saltKey, (System.nanoTime() - startTime) / 1000000);
+            return key;
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not derive key with " + ENC2_KEY_ALGORITHM, ex);
+        }
+    }
+
 }
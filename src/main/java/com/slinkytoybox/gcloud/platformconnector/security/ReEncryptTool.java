@@ -0,0 +1,138 @@
+/*
+ *   platformconnector - ReEncryptTool.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnector.security;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Command line utility that rewrites ENC: values in a properties file to the ENC2: format, and can time both formats
+ * against each other. The key is read from -Dsecure.key, the SECURE_KEY environment variable, or secure.key in the file.
+ * <p>
+ * java -cp platformconnector.jar "-Dloader.main=com.slinkytoybox.gcloud.platformconnector.security.ReEncryptTool"
+ * org.springframework.boot.loader.PropertiesLauncher application.properties [--benchmark [iterations]]
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class ReEncryptTool {
+
+    private static final Pattern ENC_VALUE = Pattern.compile("^(\\s*[^#!\\s][^=:]*[=:]\\s*)ENC:(\\S+)\\s*$");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReEncryptTool <properties file> [--benchmark [iterations]]");
+            System.exit(1);
+        }
+        Path file = Path.of(args[0]);
+        PlatformEncryption encryption = new PlatformEncryption();
+        encryption.initialise(findKey(file));
+
+        if (args.length > 1 && args[1].equals("--benchmark")) {
+            benchmark(encryption, (args.length > 2 ? Integer.parseInt(args[2]) : 2000));
+            return;
+        }
+
+        encryption.setEncryptFormat("ENC2");
+        int converted = 0;
+        List<String> output = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Matcher m = ENC_VALUE.matcher(line);
+            if (m.matches()) {
+                String plainText = encryption.decrypt("ENC:" + m.group(2));
+                if (plainText == null) {
+                    throw new IllegalStateException("Could not decrypt value on line: " + m.group(1).trim());
+                }
+                line = m.group(1) + encryption.encrypt(plainText);
+                converted++;
+            }
+            output.add(line);
+        }
+        Path backup = Path.of(file.toString() + ".bak");
+        Files.copy(file, backup);
+        Files.write(file, output, StandardCharsets.UTF_8);
+        System.err.println("Re-encrypted " + converted + " values in " + file + ", original saved to " + backup);
+    }
+
+    private static String findKey(Path file) throws IOException {
+        String key = System.getProperty("secure.key", System.getenv("SECURE_KEY"));
+        if (key == null || key.isBlank()) {
+            Properties props = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+            key = props.getProperty("secure.key");
+        }
+        if (key == null || key.isBlank()) {
+            throw new IllegalArgumentException("Encryption key is not set. Use -Dsecure.key or SECURE_KEY");
+        }
+        return key;
+    }
+
+    private static void benchmark(PlatformEncryption encryption, int iterations) throws Exception {
+        String sample = "Benchmark-Secret-" + System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String format : new String[]{"ENC", "ENC2"}) {
+            encryption.setEncryptFormat(format);
+            String encrypted = encryption.encrypt(sample);
+            // Warm up before timing
+            runThreads(encryption, encrypted, Math.max(1, iterations / 10), threads);
+            long startTime = System.nanoTime();
+            runThreads(encryption, encrypted, iterations, threads);
+            long elapsed = System.nanoTime() - startTime;
+            long operations = 2L * iterations * threads;
+            System.out.printf("%-5s %d threads: %,d encrypt+decrypt ops in %,d ms = %,.0f ops/s, %,.1f us/op per thread%n",
+                    format, threads, operations, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    operations / (elapsed / 1e9), (elapsed / 1e3) * threads / operations);
+        }
+    }
+
+    private static void runThreads(PlatformEncryption encryption, String encrypted, int iterations, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        encryption.encrypt("value-" + i);
+                        encryption.decrypt(encrypted);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}